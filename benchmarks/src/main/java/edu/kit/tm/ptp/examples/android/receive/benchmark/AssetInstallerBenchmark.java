@@ -0,0 +1,83 @@
+package edu.kit.tm.ptp.examples.android.receive.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kit.tm.ptp.examples.android.receive.AssetInstaller;
+
+/**
+ * Installing an asset: copying it to a file, plain and zipped, and hashing it to see whether it changed.
+ *
+ * The payload size is the size of the asset, the rate the number of assets per second. The streams read from memory,
+ * so the results show the cost of the buffers and the file writes, not of reading the APK.
+ *
+ * @author Simeon Andreev
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssetInstallerBenchmark {
+
+	@Param({ "65536", "1048576", "8388608" })
+	public int payloadSize;
+
+	@Param({ "0", "10" })
+	public int rate;
+
+	private byte[] asset;
+	private byte[] zipped;
+	private File destination;
+	private Pacer pacer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		asset = Payloads.bytes(payloadSize);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("asset"));
+		zip.write(asset);
+		zip.closeEntry();
+		zip.close();
+		zipped = bytes.toByteArray();
+		destination = File.createTempFile("asset", null);
+		pacer = new Pacer(rate);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() { destination.delete(); }
+
+	@Setup(Level.Invocation)
+	public void pace() { pacer.await(); }
+
+	@Benchmark
+	public void copy() throws IOException { AssetInstaller.copy(new ByteArrayInputStream(asset), destination, false); }
+
+	@Benchmark
+	public void copyZip() throws IOException { AssetInstaller.copy(new ByteArrayInputStream(zipped), destination, true); }
+
+	@Benchmark
+	public String hash() throws IOException { return AssetInstaller.hash(new ByteArrayInputStream(asset)); }
+}
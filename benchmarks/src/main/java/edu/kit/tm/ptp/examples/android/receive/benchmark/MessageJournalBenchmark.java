@@ -0,0 +1,81 @@
+package edu.kit.tm.ptp.examples.android.receive.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kit.tm.ptp.examples.android.receive.MessageJournal;
+
+/**
+ * The journal path of messages no client takes: appending to the mapped journal, and appending plus draining the
+ * oldest record as the replay to a client does.
+ *
+ * The payload size is the length of the message content, the rate the number of messages per second. Appending to the
+ * full journal drops the oldest records, so the append benchmark includes that once the journal filled up.
+ *
+ * @author Simeon Andreev
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageJournalBenchmark {
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "0", "1000" })
+	public int rate;
+
+	private File directory;
+	private MessageJournal journal;
+	private String content;
+	private Pacer pacer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", null);
+		if (!directory.delete() || !directory.mkdir()) throw new IOException("Could not create " + directory);
+		journal = new MessageJournal(directory, MessageJournal.defaultCapacity, MessageJournal.Overflow.DROP_OLDEST);
+		content = Payloads.text(payloadSize);
+		pacer = new Pacer(rate);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		journal.close();
+		new File(directory, MessageJournal.journalFile).delete();
+		directory.delete();
+	}
+
+	@Setup(Level.Invocation)
+	public void pace() { pacer.await(); }
+
+	@Benchmark
+	public boolean append() { return journal.append(MessageJournal.untaggedIdentity, Payloads.address, content); }
+
+	@Benchmark
+	public MessageJournal.Entry appendDrain() {
+		journal.append(MessageJournal.untaggedIdentity, Payloads.address, content);
+		final MessageJournal.Entry entry = journal.peek();
+		journal.remove(entry.sequence);
+		return entry;
+	}
+}
@@ -0,0 +1,43 @@
+package edu.kit.tm.ptp.examples.android.receive.benchmark;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spaces benchmark operations to a given rate, like messages arriving from the network one at a time.
+ *
+ * Benchmarks call {@link #await()} from a {@code Level.Invocation} setup, so the wait is not measured. With rate 0
+ * the operations run back to back. The invocation setup itself costs JMH a timestamp per operation, so results are
+ * comparable between the rates of a benchmark, not with benchmarks without pacing.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class Pacer {
+
+	/** Remaining wait (in nanoseconds) below which the pacer spins instead of parking. */
+	private static final long spinNanos = 50 * 1000;
+
+	private final long interval;
+	private long next;
+
+	/**
+	 * @param rate Operations per second, 0 for no pacing.
+	 */
+	public Pacer(int rate) {
+		this.interval = rate > 0 ? 1000L * 1000 * 1000 / rate : 0;
+		this.next = System.nanoTime();
+	}
+
+	/**
+	 * Waits until the next operation is due.
+	 */
+	public void await() {
+		if (interval == 0) return;
+		next += interval;
+		long remaining;
+		while ((remaining = next - System.nanoTime()) > 0)
+			if (remaining > spinNanos) LockSupport.parkNanos(remaining - spinNanos);
+		// Fell behind, e.g. during a GC. Go on from now instead of catching up in a burst.
+		if (-remaining > interval) next = System.nanoTime();
+	}
+}
@@ -0,0 +1,36 @@
+package edu.kit.tm.ptp.examples.android.receive.benchmark;
+
+import java.util.Random;
+
+/**
+ * Reproducible test data for the benchmarks.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class Payloads {
+
+	/** A PTP identifier, as the messages come from. */
+	public static final String address = "ptpexampleabcdef.onion";
+	/** Name of the identity which receives the messages. */
+	public static final String identity = "default";
+
+	private static final String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789 ";
+
+	private Payloads() { }
+
+	/** Returns ASCII text of the given length, like a chat message. */
+	public static String text(int length) {
+		final Random random = new Random(length);
+		final StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return text.toString();
+	}
+
+	/** Returns random bytes of the given length, like a binary asset. */
+	public static byte[] bytes(int length) {
+		final byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+}
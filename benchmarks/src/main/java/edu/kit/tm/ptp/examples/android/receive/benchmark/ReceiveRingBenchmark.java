@@ -0,0 +1,98 @@
+package edu.kit.tm.ptp.examples.android.receive.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kit.tm.ptp.examples.android.receive.ReceiveRing;
+
+/**
+ * The handoff of received messages from the PTP receive thread to the delivery thread.
+ *
+ * The benchmark thread plays the receive thread: it copies the payload into a new message, as PTP does for every
+ * message, and publishes it. The consumer hashes the content, as the duplicate filter does. {@link #handoff()} waits
+ * until the consumer took the message, so it measures the latency of one handoff, including the wakeup of a consumer
+ * which went to sleep. {@link #publish()} does not wait and measures the producer side under back pressure.
+ *
+ * The payload size is the message size, the rate the number of messages per second. At low rates the consumer runs
+ * out of work between messages, which is where the wait strategies differ.
+ *
+ * @author Simeon Andreev
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveRingBenchmark {
+
+	@Param({ "64", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "0", "1000" })
+	public int rate;
+
+	@Param({ "SPIN", "YIELD", "PARK" })
+	public ReceiveRing.WaitStrategy strategy;
+
+	private byte[] payload;
+	private ReceiveRing<byte[]> ring;
+	private final AtomicLong consumed = new AtomicLong();
+	private long published = 0;
+	// Written by the consumer so the hashing is not optimized away
+	private volatile int hash;
+	private Pacer pacer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		payload = Payloads.bytes(payloadSize);
+		ring = new ReceiveRing<byte[]>(ReceiveRing.defaultCapacity, strategy, new ReceiveRing.Consumer<byte[]>() {
+
+			@Override
+			public void consume(byte[] message, long receivedAt, String identity) {
+				int h = 1;
+				for (byte b : message) h = 31 * h + b;
+				hash = h;
+				consumed.lazySet(consumed.get() + 1);
+			}
+		});
+		ring.start();
+		pacer = new Pacer(rate);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() { ring.stop(); }
+
+	@Setup(Level.Invocation)
+	public void pace() { pacer.await(); }
+
+	@Benchmark
+	public long handoff() {
+		ring.publish(payload.clone(), System.nanoTime(), Payloads.identity);
+		final long target = ++published;
+		// Yield rather than spin, so the consumer gets to run also on a single core.
+		while (consumed.get() < target) Thread.yield();
+		return target;
+	}
+
+	@Benchmark
+	public long publish() {
+		ring.publish(payload.clone(), System.nanoTime(), Payloads.identity);
+		return ++published;
+	}
+}
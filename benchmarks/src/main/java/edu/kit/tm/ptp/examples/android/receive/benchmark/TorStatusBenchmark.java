@@ -0,0 +1,72 @@
+package edu.kit.tm.ptp.examples.android.receive.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.kit.tm.ptp.examples.android.receive.TorStatus;
+
+/**
+ * Parsing of the Tor status lines read while Tor bootstraps: bootstrap events from the control port, the Tor log and
+ * the SOCKS listener reply.
+ *
+ * The payload size is the length of the free text in the lines (the SUMMARY of events, the message of log lines),
+ * the rate the number of lines per second.
+ *
+ * @author Simeon Andreev
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TorStatusBenchmark {
+
+	@Param({ "32", "256", "2048" })
+	public int payloadSize;
+
+	@Param({ "0", "1000" })
+	public int rate;
+
+	private String event;
+	private String log;
+	private String listeners;
+	private Pacer pacer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final String text = Payloads.text(payloadSize);
+		event = "NOTICE BOOTSTRAP PROGRESS=85 TAG=ap_conn_done SUMMARY=\"" + text + "\"";
+		log = "Oct 18 10:00:00.000 [notice] Bootstrapped 85%: " + text;
+		listeners = "\"127.0.0.1:9050\" \"[::1]:9050\"";
+		pacer = new Pacer(rate);
+	}
+
+	@Setup(Level.Invocation)
+	public void pace() { pacer.await(); }
+
+	@Benchmark
+	public int parsePercent() { return TorStatus.parsePercent(event); }
+
+	@Benchmark
+	public boolean isBootstrapDone() { return TorStatus.isBootstrapDone(event); }
+
+	@Benchmark
+	public int parseBootstrapped() { return TorStatus.parseBootstrapped(log); }
+
+	@Benchmark
+	public int parsePort() { return TorStatus.parsePort(listeners); }
+}
@@ -0,0 +1,89 @@
+package edu.kit.tm.ptp.examples.android.receive.harness;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.freehaven.tor.control.NullEventHandler;
+import net.freehaven.tor.control.TorControlConnection;
+
+/**
+ * Runs the control port conversation of the receive example against a control port, over jtorctl like the app:
+ * authenticate, ask for the SOCKS port, wait for the bootstrap by STATUS_CLIENT events and shut Tor down. Prints how
+ * long each step took.
+ *
+ * Meant to check a {@link FakeControlPort} script, or to compare it with a real Tor.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class ControlPortProbe {
+
+	private static final long bootstrapTimeout = 5 * 60 * 1000;
+
+	private static long lap = System.currentTimeMillis();
+
+	private static void step(String name) {
+		final long now = System.currentTimeMillis();
+		System.out.println(String.format("%8d ms %s", now - lap, name));
+		lap = now;
+	}
+
+	private static int parsePercent(String line) {
+		final int start = line.indexOf("PROGRESS=") + "PROGRESS=".length();
+		int end = start;
+		while (end < line.length() && Character.isDigit(line.charAt(end))) ++end;
+		return Integer.parseInt(line.substring(start, end));
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: ControlPortProbe <control port> [<hex secret>]");
+			System.exit(1);
+		}
+		final int port = Integer.parseInt(args[0]);
+		final byte[] secret = args.length == 2 ? new BigInteger(args[1], 16).toByteArray() : new byte[0];
+
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress("127.0.0.1", port), 3000);
+		TorControlConnection connection = new TorControlConnection(socket);
+		connection.launchThread(true);
+		step("connected");
+		connection.authenticate(secret);
+		step("authenticated");
+		System.out.println("           SOCKS listeners " + connection.getInfo("net/listeners/socks"));
+		step("asked for the SOCKS port");
+
+		final BlockingQueue<Integer> progress = new LinkedBlockingQueue<Integer>();
+		connection.setEventHandler(new NullEventHandler() {
+
+			@Override
+			public void unrecognized(String type, String msg) {
+				if (type.equals("STATUS_CLIENT") && msg.contains(" BOOTSTRAP ")) progress.add(parsePercent(msg));
+			}
+		});
+		connection.setEvents(Arrays.asList("STATUS_CLIENT"));
+		progress.add(parsePercent(connection.getInfo("status/bootstrap-phase")));
+		int percent = -1;
+		while (percent < 100) {
+			Integer next = progress.poll(bootstrapTimeout, TimeUnit.MILLISECONDS);
+			if (next == null) throw new IOException("Tor did not bootstrap in time.");
+			if (next <= percent) continue;
+			percent = next;
+			step("bootstrapped " + percent + "%");
+		}
+		connection.setEvents(Arrays.<String>asList());
+
+		connection.shutdownTor("SHUTDOWN");
+		step("sent SIGNAL SHUTDOWN");
+		// The control port closes once Tor is gone.
+		while (socket.getInputStream().read() != -1);
+		step("control port closed");
+		socket.close();
+	}
+}
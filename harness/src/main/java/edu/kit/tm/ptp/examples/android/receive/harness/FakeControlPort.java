@@ -0,0 +1,336 @@
+package edu.kit.tm.ptp.examples.android.receive.harness;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A stand-in for the control port of Tor, to drive the startup of the receive example without a Tor.
+ *
+ * Speaks enough of the control protocol for {@code TorManager} and {@code ExternalTor}: AUTHENTICATE,
+ * GETINFO status/bootstrap-phase and net/listeners/socks, SETEVENTS STATUS_CLIENT with bootstrap events, SETCONF and
+ * RESETCONF (accepted, not applied) and SIGNAL SHUTDOWN. Everything else gets the replies Tor would give.
+ *
+ * The timing is scripted: the bootstrap progress over time, a delay before the reply to each command and how long
+ * a shutdown takes. For example, to see the startup pipeline wait for a slow bootstrap:
+ *
+ * <pre>
+ * java FakeControlPort --port 9151 --socks-port 9150 --bootstrap 0:0,2000:45,8000:100 --delay AUTHENTICATE=300
+ * </pre>
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class FakeControlPort implements Runnable {
+
+	/** A bootstrap progress, reported some time after the start. */
+	public static class Step {
+
+		/** Milliseconds after the start. */
+		public final long at;
+		public final int percent;
+
+		public Step(long at, int percent) {
+			this.at = at;
+			this.percent = percent;
+		}
+	}
+
+	public static final String defaultBootstrap = "0:0,500:10,1000:45,2000:80,3000:100";
+
+	// Bootstrap phases of Tor: percent, tag, summary
+	private static final String[][] phases = {
+		{ "0", "starting", "Starting" },
+		{ "5", "conn_dir", "Connecting to directory server" },
+		{ "10", "handshake_dir", "Finishing handshake with directory server" },
+		{ "15", "onehop_create", "Establishing an encrypted directory connection" },
+		{ "20", "requesting_status", "Asking for networkstatus consensus" },
+		{ "25", "loading_status", "Loading networkstatus consensus" },
+		{ "40", "loading_keys", "Loading authority key certs" },
+		{ "45", "requesting_descriptors", "Asking for relay descriptors" },
+		{ "50", "loading_descriptors", "Loading relay descriptors" },
+		{ "80", "conn_or", "Connecting to the Tor network" },
+		{ "85", "handshake_or", "Finishing handshake with first hop" },
+		{ "90", "circuit_create", "Establishing a Tor circuit" },
+		{ "100", "done", "Done" }
+	};
+
+	private final ServerSocket server;
+	private final int socksPort;
+	// Delay (in milliseconds) before replying, by command
+	private final Map<String, Long> delays;
+	private final List<Step> bootstrap;
+	// Time between the reply to SIGNAL SHUTDOWN and closing the control port
+	private final long shutdownWait;
+	// Hex encoded secret to expect, null to accept any
+	private final String secret;
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private volatile int percent = 0;
+	private volatile boolean running = true;
+	private long started = 0;
+
+	public FakeControlPort(int port, int socksPort, Map<String, Long> delays, List<Step> bootstrap, long shutdownWait, String secret) throws IOException {
+		this.server = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+		this.socksPort = socksPort;
+		this.delays = delays;
+		this.bootstrap = bootstrap;
+		this.shutdownWait = shutdownWait;
+		this.secret = secret;
+	}
+
+	public int getPort() { return server.getLocalPort(); }
+
+	/**
+	 * Returns the bootstrap status line for a percentage, as Tor reports it.
+	 */
+	public static String phase(int percent) {
+		String[] phase = phases[0];
+		for (String[] candidate : phases)
+			if (Integer.parseInt(candidate[0]) <= percent) phase = candidate;
+		return "NOTICE BOOTSTRAP PROGRESS=" + percent + " TAG=" + phase[1] + " SUMMARY=\"" + phase[2] + "\"";
+	}
+
+	/**
+	 * Parses a bootstrap script like 0:0,1000:50,3000:100 (milliseconds after the start : percent).
+	 */
+	public static List<Step> parseBootstrap(String script) {
+		List<Step> steps = new ArrayList<Step>();
+		for (String step : script.split(",")) {
+			final String[] parts = step.trim().split(":");
+			if (parts.length != 2) throw new IllegalArgumentException("Invalid bootstrap step: " + step);
+			steps.add(new Step(Long.parseLong(parts[0]), Integer.parseInt(parts[1])));
+		}
+		return steps;
+	}
+
+	/**
+	 * Accepts control connections until the port is closed, e.g. by SIGNAL SHUTDOWN.
+	 */
+	@Override
+	public void run() {
+		started = System.currentTimeMillis();
+		Thread progress = new Thread(new Runnable() {
+
+			@Override
+			public void run() { bootstrap(); }
+		}, "Bootstrap");
+		progress.setDaemon(true);
+		progress.start();
+
+		while (running) {
+			try {
+				Connection connection = new Connection(server.accept());
+				connections.add(connection);
+				new Thread(connection, "Control connection").start();
+			} catch (IOException e) {
+				if (running) log("accept failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Closes the control port and all connections.
+	 */
+	public void close() {
+		running = false;
+		try { server.close(); } catch (IOException e) { }
+		for (Connection connection : connections) connection.close();
+	}
+
+	private void bootstrap() {
+		for (Step step : bootstrap) {
+			final long wait = started + step.at - System.currentTimeMillis();
+			try {
+				if (wait > 0) Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (!running) return;
+			percent = step.percent;
+			log("bootstrap " + percent + "%");
+			for (Connection connection : connections)
+				if (connection.statusEvents) connection.send("650 STATUS_CLIENT " + phase(percent));
+		}
+	}
+
+	private void log(String text) { System.out.println(String.format(Locale.US, "%8d ms %s", System.currentTimeMillis() - started, text)); }
+
+	/** A connected control client. */
+	private class Connection implements Runnable {
+
+		private final Socket socket;
+		private final Writer out;
+		private boolean authenticated = false;
+		private volatile boolean statusEvents = false;
+
+		public Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+		}
+
+		@Override
+		public void run() {
+			log("connection from port " + socket.getPort());
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+				String line;
+				while ((line = in.readLine()) != null && !socket.isClosed()) {
+					log("< " + line);
+					handle(line);
+				}
+			} catch (IOException e) {
+				// Closed.
+			} finally {
+				close();
+				connections.remove(this);
+				log("connection from port " + socket.getPort() + " closed");
+			}
+		}
+
+		private void handle(String line) {
+			final int space = line.indexOf(' ');
+			final String command = (space == -1 ? line : line.substring(0, space)).toUpperCase(Locale.US);
+			final String arguments = space == -1 ? "" : line.substring(space + 1).trim();
+
+			final Long delay = delays.get(command);
+			if (delay != null) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			if (command.equals("AUTHENTICATE")) {
+				final String given = arguments.replace("\"", "");
+				if (secret != null && !secret.equalsIgnoreCase(given)) {
+					send("515 Authentication failed: Password did not match HashedControlPassword *or* authentication cookie.");
+					close();
+					return;
+				}
+				authenticated = true;
+				send("250 OK");
+			} else if (command.equals("QUIT")) {
+				send("250 closing connection");
+				close();
+			} else if (!authenticated) {
+				send("514 Authentication required.");
+				close();
+			} else if (command.equals("GETINFO")) {
+				getInfo(arguments.split(" +"));
+			} else if (command.equals("SETEVENTS")) {
+				statusEvents = Arrays.asList(arguments.toUpperCase(Locale.US).split(" +")).contains("STATUS_CLIENT");
+				send("250 OK");
+			} else if (command.equals("SETCONF") || command.equals("RESETCONF") || command.equals("TAKEOWNERSHIP")) {
+				send("250 OK");
+			} else if (command.equals("SIGNAL")) {
+				send("250 OK");
+				final String signal = arguments.toUpperCase(Locale.US);
+				if (signal.equals("SHUTDOWN")) shutdown(shutdownWait);
+				else if (signal.equals("HALT")) shutdown(0);
+			} else {
+				send("510 Unrecognized command \"" + command + "\"");
+			}
+		}
+
+		private void getInfo(String[] keys) {
+			List<String> lines = new ArrayList<String>();
+			for (String key : keys) {
+				if (key.equals("status/bootstrap-phase")) lines.add("250-" + key + "=" + phase(percent));
+				else if (key.equals("net/listeners/socks")) lines.add("250-" + key + "=\"127.0.0.1:" + socksPort + "\"");
+				else if (key.equals("version")) lines.add("250-" + key + "=0.2.5.10 (fake)");
+				else {
+					send("552 Unrecognized key \"" + key + "\"");
+					return;
+				}
+			}
+			lines.add("250 OK");
+			send(lines.toArray(new String[lines.size()]));
+		}
+
+		public void send(String... lines) {
+			StringBuilder reply = new StringBuilder();
+			for (String line : lines) reply.append(line).append("\r\n");
+			synchronized (out) {
+				try {
+					out.write(reply.toString());
+					out.flush();
+				} catch (IOException e) {
+					close();
+				}
+			}
+		}
+
+		public void close() {
+			try { socket.close(); } catch (IOException e) { }
+		}
+	}
+
+	private void shutdown(final long wait) {
+		log("shutting down in " + wait + " ms");
+		Thread shutdown = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+				}
+				close();
+			}
+		}, "Shutdown");
+		shutdown.start();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: FakeControlPort [--port <control port, 0 for any>] [--socks-port <port>]");
+		System.err.println("  [--bootstrap <ms:percent,...>] [--delay <COMMAND=ms>]... [--shutdown-wait <ms>] [--secret <hex>]");
+		System.err.println("Defaults: --port 9151 --socks-port 9150 --bootstrap " + defaultBootstrap + " --shutdown-wait 0");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = 9151;
+		int socksPort = 9150;
+		String script = defaultBootstrap;
+		Map<String, Long> delays = new HashMap<String, Long>();
+		long shutdownWait = 0;
+		String secret = null;
+
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				final String option = args[i];
+				if (i + 1 == args.length) usage();
+				final String value = args[++i];
+				if (option.equals("--port")) port = Integer.parseInt(value);
+				else if (option.equals("--socks-port")) socksPort = Integer.parseInt(value);
+				else if (option.equals("--bootstrap")) script = value;
+				else if (option.equals("--shutdown-wait")) shutdownWait = Long.parseLong(value);
+				else if (option.equals("--secret")) secret = value;
+				else if (option.equals("--delay")) {
+					final int separator = value.indexOf('=');
+					if (separator == -1) usage();
+					delays.put(value.substring(0, separator).toUpperCase(Locale.US), Long.parseLong(value.substring(separator + 1)));
+				} else usage();
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+
+		FakeControlPort fake = new FakeControlPort(port, socksPort, delays, parseBootstrap(script), shutdownWait, secret);
+		System.out.println("Control port " + fake.getPort() + ", SOCKS port " + socksPort);
+		fake.run();
+	}
+}
@@ -0,0 +1,221 @@
+package edu.kit.tm.ptp.examples.android.receive.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.kit.tm.ptp.examples.android.receive.MessageJournal;
+import edu.kit.tm.ptp.examples.android.receive.ReceiveRing;
+
+/**
+ * Feeds received messages into the receive path of the example in process, at a given rate and size.
+ *
+ * Needs neither Tor nor a device: the messages go the way ClientService takes them while no client is registered,
+ * through the {@link ReceiveRing} into the {@link MessageJournal}, and a drain thread takes them out again like the
+ * replay to a client. Every message starts with its number and the time it was generated,
+ * {@code <number> <System.currentTimeMillis()> }, padded to the size. Prints the messages per second in and out, the
+ * ring occupancy and high-water mark, the journal backlog and the dropped messages once a second.
+ *
+ * <pre>
+ * java LoadGenerator --rate 5000 --size 1024 --drain-rate 4000 --seconds 30 --wait PARK
+ * </pre>
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class LoadGenerator {
+
+	private static final String address = "abcdefghijklmnop";
+
+	private final MessageJournal journal;
+	private final ReceiveRing<String> ring;
+	// Messages appended and drained so far.
+	private final AtomicLong generated = new AtomicLong();
+	private final AtomicLong drained = new AtomicLong();
+	private volatile boolean running = true;
+
+	public LoadGenerator(final MessageJournal journal, int capacity, ReceiveRing.WaitStrategy strategy) {
+		this.journal = journal;
+		// Journals the messages like ClientService does while no client is registered.
+		this.ring = new ReceiveRing<String>(capacity, strategy, new ReceiveRing.Consumer<String>() {
+
+			@Override
+			public void consume(String message, long receivedAt, String identity) {
+				journal.append(identity, address, message);
+			}
+		});
+	}
+
+	/**
+	 * Returns the content of a message: its number and generation time, padded to the size.
+	 */
+	public static String content(long number, int size) {
+		StringBuilder content = new StringBuilder(size);
+		content.append(number).append(' ').append(System.currentTimeMillis()).append(' ');
+		for (int i = 0; content.length() < size; ++i) content.append((char) ('a' + i % 26));
+		return content.toString();
+	}
+
+	/**
+	 * Waits until the given time (System.nanoTime()) has passed.
+	 */
+	private static void awaitNanos(long at) {
+		long remaining;
+		while ((remaining = at - System.nanoTime()) > 0) LockSupport.parkNanos(remaining);
+	}
+
+	/**
+	 * Publishes messages to the ring at the given rate (0 for as fast as possible) until the deadline, then waits until
+	 * the ring has passed them on.
+	 */
+	public void generate(double rate, int size, long deadline) {
+		final long interval = rate > 0 ? (long) (1000L * 1000 * 1000 / rate) : 0;
+		long next = System.nanoTime();
+		ring.start();
+		for (long number = 0; System.nanoTime() < deadline; ++number) {
+			if (interval > 0) {
+				awaitNanos(next);
+				next += interval;
+			}
+			ring.publish(content(number, size), System.currentTimeMillis(), MessageJournal.untaggedIdentity);
+			generated.incrementAndGet();
+		}
+		ring.stop();
+	}
+
+	/**
+	 * Starts a thread which takes messages out of the journal at the given rate (0 for as fast as possible).
+	 */
+	public Thread drain(final double rate) {
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				final long interval = rate > 0 ? (long) (1000L * 1000 * 1000 / rate) : 0;
+				long next = System.nanoTime();
+				while (running) {
+					MessageJournal.Entry entry = journal.peek();
+					if (entry == null) {
+						LockSupport.parkNanos(100 * 1000);
+						continue;
+					}
+					if (interval > 0) {
+						awaitNanos(next);
+						next += interval;
+					}
+					// The entry may have been dropped for a newer one meanwhile.
+					if (journal.remove(entry.sequence)) drained.incrementAndGet();
+				}
+			}
+		}, "drain");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Starts a thread which prints the state once a second.
+	 */
+	public Thread report() {
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				long lastGenerated = 0;
+				long lastDrained = 0;
+				long last = start;
+				while (running) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					final long now = System.nanoTime();
+					final long in = generated.get();
+					final long out = drained.get();
+					final double seconds = (now - last) / 1e9;
+					System.out.println(String.format("%6.1f s  in %9.1f msgs/s  out %9.1f msgs/s  ring %5d (high %5d)  backlog %7d msgs %9d bytes  dropped %d",
+						(now - start) / 1e9, (in - lastGenerated) / seconds, (out - lastDrained) / seconds, ring.occupancy(),
+						ring.highWater(), journal.size(), journal.bytes(), journal.dropped() + journal.rejected()));
+					lastGenerated = in;
+					lastDrained = out;
+					last = now;
+				}
+			}
+		}, "report");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public void stop() { running = false; }
+
+	private static void usage() {
+		System.err.println("Usage: LoadGenerator [--rate <messages/s, 0 for no limit>] [--size <characters>] [--seconds <duration>]");
+		System.err.println("  [--drain-rate <messages/s, 0 for no limit, -1 for no client>] [--capacity <journal bytes>] [--directory <journal directory>]");
+		System.err.println("  [--ring <slots, a power of two>] [--wait SPIN|YIELD|PARK]");
+		System.err.println("Defaults: --rate 1000 --size 256 --seconds 10 --drain-rate 0 --capacity " + MessageJournal.defaultCapacity
+			+ " --ring " + ReceiveRing.defaultCapacity + " --wait PARK");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		double rate = 1000;
+		int size = 256;
+		long seconds = 10;
+		double drainRate = 0;
+		int capacity = MessageJournal.defaultCapacity;
+		File directory = null;
+		int slots = ReceiveRing.defaultCapacity;
+		ReceiveRing.WaitStrategy strategy = ReceiveRing.WaitStrategy.PARK;
+
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				final String option = args[i];
+				if (i + 1 == args.length) usage();
+				final String value = args[++i];
+				if (option.equals("--rate")) rate = Double.parseDouble(value);
+				else if (option.equals("--size")) size = Integer.parseInt(value);
+				else if (option.equals("--seconds")) seconds = Long.parseLong(value);
+				else if (option.equals("--drain-rate")) drainRate = Double.parseDouble(value);
+				else if (option.equals("--capacity")) capacity = Integer.parseInt(value);
+				else if (option.equals("--directory")) directory = new File(value);
+				else if (option.equals("--ring")) slots = Integer.parseInt(value);
+				else if (option.equals("--wait")) strategy = ReceiveRing.WaitStrategy.valueOf(value);
+				else usage();
+			}
+		} catch (IllegalArgumentException e) {
+			// Also a NumberFormatException
+			usage();
+		}
+		if (rate < 0 || size < 0 || seconds <= 0 || capacity <= 0 || Integer.bitCount(slots) != 1) usage();
+
+		final boolean temporary = directory == null;
+		if (temporary) {
+			directory = File.createTempFile("journal", "");
+			directory.delete();
+		}
+		directory.mkdirs();
+		MessageJournal journal = new MessageJournal(directory, capacity, MessageJournal.Overflow.DROP_OLDEST);
+		LoadGenerator generator = new LoadGenerator(journal, slots, strategy);
+		try {
+			Thread drain = drainRate >= 0 ? generator.drain(drainRate) : null;
+			Thread report = generator.report();
+			generator.generate(rate, size, System.nanoTime() + seconds * 1000L * 1000 * 1000);
+			generator.stop();
+			if (drain != null) drain.join();
+			report.join();
+			System.out.println(String.format("generated %d, drained %d, left %d, dropped %d", generator.generated.get(),
+				generator.drained.get(), journal.size(), journal.dropped() + journal.rejected()));
+		} finally {
+			generator.stop();
+			journal.close();
+			if (temporary) {
+				new File(directory, MessageJournal.journalFile).delete();
+				directory.delete();
+			}
+		}
+	}
+}
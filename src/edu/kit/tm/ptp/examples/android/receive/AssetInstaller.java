@@ -0,0 +1,269 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipInputStream;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+
+/**
+ * Installs the raw resources Tor and PTP need (Tor binary, torrc) into the working directory.
+ *
+ * A manifest in the working directory records the content hash of every installed resource. A resource is only
+ * extracted again if its hash changed, so an APK upgrade replaces an outdated Tor binary while a plain restart
+ * does not touch the files at all. Extraction runs on background threads, see {@link #start()} and {@link #await()}.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class AssetInstaller {
+
+	public static final String manifestFile = "assets.properties";
+	public static final int bufferSize = 64 * 1024;
+
+	/** Manifest key for the APK update time. If it did not change, no hashing is needed. */
+	private static final String packageKey = "package.lastUpdateTime";
+
+	private static class Asset {
+
+		public final String location;
+		public final int resource;
+		public final boolean zip;
+		public final boolean executable;
+
+		public Asset(String location, int resource, boolean zip, boolean executable) {
+			this.location = location;
+			this.resource = resource;
+			this.zip = zip;
+			this.executable = executable;
+		}
+	}
+
+	private final Context context;
+	private final File manifest;
+	private final List<Asset> assets = new ArrayList<Asset>();
+	private final Properties installed = new Properties();
+	private ExecutorService executor = null;
+	private List<Future<String>> pending = null;
+	private long packageUpdateTime = -1;
+
+	public AssetInstaller(Context context, String workingDirectory) {
+		this.context = context;
+		this.manifest = new File(workingDirectory, manifestFile);
+	}
+
+	/**
+	 * Registers a raw resource to install at the given location.
+	 *
+	 * @param zip Whether the resource is a zip file whose first entry is to be installed.
+	 * @param executable Whether the installed file needs to be executable.
+	 */
+	public AssetInstaller add(String location, int resource, boolean zip, boolean executable) {
+		assets.add(new Asset(location, resource, zip, executable));
+		return this;
+	}
+
+	/**
+	 * Starts installing the registered resources in the background. Returns immediately.
+	 */
+	public synchronized void start() {
+		load();
+		packageUpdateTime = getPackageUpdateTime();
+		final boolean upgraded = packageUpdateTime == -1
+				|| !String.valueOf(packageUpdateTime).equals(installed.getProperty(packageKey));
+
+		executor = Executors.newFixedThreadPool(Math.max(1, assets.size()));
+		pending = new ArrayList<Future<String>>();
+		for (final Asset asset : assets) {
+			pending.add(executor.submit(new Callable<String>() {
+
+				@Override
+				public String call() throws Exception { return install(asset, upgraded); }
+			}));
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits until all resources are installed and records their hashes in the manifest.
+	 */
+	public synchronized void await() throws IOException {
+		if (pending == null) start();
+		try {
+			for (int i = 0; i < assets.size(); ++i)
+				installed.setProperty(new File(assets.get(i).location).getName(), pending.get(i).get());
+		} catch (InterruptedException e) {
+			throw new IOException("Installing the Tor files was interrupted.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause().getMessage());
+		} finally {
+			pending = null;
+		}
+		if (packageUpdateTime != -1) installed.setProperty(packageKey, String.valueOf(packageUpdateTime));
+		store();
+	}
+
+	/**
+	 * Installs a single resource if its hash differs from the recorded one. Returns the hash of the resource.
+	 */
+	private String install(Asset asset, boolean upgraded) throws IOException {
+		final File destination = new File(asset.location);
+		final String recorded = installed.getProperty(destination.getName());
+
+		// Same APK as during the last install: the resource cannot have changed.
+		if (!upgraded && recorded != null && destination.exists()) return recorded;
+
+		final String hash = hash(context.getResources().openRawResource(asset.resource));
+		if (!hash.equals(recorded) || !destination.exists()) {
+			// Extract into a temporary file first, so an interrupted extraction never looks installed.
+			File temporary = new File(asset.location + ".tmp");
+			if (asset.zip || !transfer(asset.resource, temporary))
+				copy(context.getResources().openRawResource(asset.resource), temporary, asset.zip);
+			if (!temporary.renameTo(destination)) {
+				temporary.delete();
+				throw new IOException("Could not install " + destination.getName() + ".");
+			}
+		}
+		if (asset.executable) destination.setExecutable(true);
+		return hash;
+	}
+
+	/**
+	 * Copies an uncompressed raw resource with a channel transfer. Returns false if the resource is stored compressed.
+	 */
+	private boolean transfer(int resource, File destination) throws IOException {
+		AssetFileDescriptor descriptor;
+		try {
+			descriptor = context.getResources().openRawResourceFd(resource);
+		} catch (Exception e) {
+			return false;
+		}
+		if (descriptor == null) return false;
+
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(descriptor.getFileDescriptor());
+			out = new FileOutputStream(destination);
+			FileChannel source = in.getChannel();
+			FileChannel target = out.getChannel();
+			final long start = descriptor.getStartOffset();
+			final long length = descriptor.getLength();
+			long transferred = 0;
+			while (transferred < length)
+				transferred += source.transferTo(start + transferred, length - transferred, target);
+		} finally {
+			if (in != null) in.close();
+			if (out != null) out.close();
+			descriptor.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Copies a stream into a file through a large buffer, unzipping its first entry if needed. Closes the stream.
+	 */
+	public static void copy(InputStream in, File destination, boolean zip) throws IOException {
+		FileOutputStream out = null;
+
+		try {
+			if (zip) {
+				ZipInputStream zis = new ZipInputStream(in);
+				in = zis;
+				zis.getNextEntry();
+			}
+			out = new FileOutputStream(destination);
+			FileChannel channel = out.getChannel();
+			byte[] buffer = new byte[bufferSize];
+			ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+			int bytecount;
+			while ((bytecount = in.read(buffer)) > 0) {
+				wrapper.clear();
+				wrapper.limit(bytecount);
+				while (wrapper.hasRemaining()) channel.write(wrapper);
+			}
+		} finally {
+			if (out != null) out.close();
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the SHA-1 of a stream, e.g. of a raw resource as it is stored in the APK. Closes the stream.
+	 */
+	public static String hash(InputStream in) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		try {
+			byte[] buffer = new byte[bufferSize];
+			int bytecount;
+			while ((bytecount = in.read(buffer)) > 0) digest.update(buffer, 0, bytecount);
+		} finally {
+			in.close();
+		}
+
+		final char[] digits = "0123456789abcdef".toCharArray();
+		final byte[] sum = digest.digest();
+		char[] hex = new char[sum.length * 2];
+		for (int i = 0; i < sum.length; ++i) {
+			hex[2 * i] = digits[(sum[i] >> 4) & 0xf];
+			hex[2 * i + 1] = digits[sum[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private long getPackageUpdateTime() {
+		try {
+			return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return -1;
+		}
+	}
+
+	private void load() {
+		installed.clear();
+		if (!manifest.exists()) return;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(manifest);
+			installed.load(in);
+		} catch (IOException e) {
+			// A broken manifest only means that everything is extracted again.
+			installed.clear();
+		} finally {
+			try { if (in != null) in.close(); } catch (IOException e) { }
+		}
+	}
+
+	private void store() throws IOException {
+		FileOutputStream out = new FileOutputStream(manifest);
+		try {
+			installed.store(out, "Installed Tor and PTP resources");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.kit.tm.ptp.examples.android.receive.R;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adapter for the chat list of {@link MainActivity}.
+ *
+ * Keeps a window of at most {@link #capacity} rows in a ring buffer. Every row is also written to a {@link MessageHistory},
+ * from which rows outside the window are paged in while scrolling. Heap usage therefore stays the same no matter how
+ * many messages were received. The window can be limited to the rows of one sender.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class ChatAdapter extends BaseAdapter {
+
+	public static final int capacity = 200;
+	public static final int pageSize = 50;
+
+	private final LayoutInflater inflater;
+	private final MessageHistory history;
+	// Display labels of the senders, so rows share their address strings
+	private final SenderTable senders = new SenderTable(SenderTable.defaultCapacity);
+	private final MessageHistory.Row[] ring = new MessageHistory.Row[capacity];
+	private int start = 0;
+	private int size = 0;
+	/** Whether the window ends with the newest row. New rows are only shown right away if it does. */
+	private boolean newest = true;
+	// Address of the sender whose rows are shown, null to show all rows
+	private String filter = null;
+
+	public ChatAdapter(LayoutInflater inflater, MessageHistory history) {
+		this.inflater = inflater;
+		this.history = history;
+	}
+
+	/**
+	 * Fills the window with the newest page of rows.
+	 */
+	public void loadLatest() {
+		List<MessageHistory.Row> rows;
+		try {
+			rows = filter != null ? history.readBefore(filter, history.end(), pageSize) : history.readBefore(history.end(), pageSize);
+		} catch (IOException e) {
+			rows = new ArrayList<MessageHistory.Row>();
+		}
+		start = 0;
+		size = 0;
+		newest = true;
+		for (MessageHistory.Row row : rows) addLast(row);
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Shows only the rows of the sender with the given address, or all rows for null.
+	 */
+	public void setFilter(String address) {
+		filter = address;
+		loadLatest();
+	}
+
+	public String getFilter() { return filter; }
+
+	/**
+	 * Adds a row. Call {@link #notifyDataSetChanged()} after adding.
+	 */
+	public void add(String address, String message, long sequence) {
+		if (address != null) address = senders.intern(address).address;
+		MessageHistory.Row row = history.append(address, message, sequence);
+		if (newest && shows(row)) addLast(row);
+	}
+
+	/**
+	 * Adds a row with a UTF-8 encoded message. Large messages are decoded only when their row is displayed.
+	 */
+	public void add(String address, byte[] message, long sequence) {
+		if (address != null) address = senders.intern(address).address;
+		MessageHistory.Row row = history.append(address, message, sequence);
+		if (newest && shows(row)) addLast(row);
+	}
+
+	/**
+	 * Pages in older rows in front of the window, dropping the newest rows if needed. Returns the number of rows added.
+	 */
+	public int loadOlder() {
+		if (size == 0 || get(0).offset <= history.start()) return 0;
+		List<MessageHistory.Row> rows;
+		try {
+			rows = filter != null ? history.readBefore(filter, get(0).offset, pageSize) : history.readBefore(get(0).offset, pageSize);
+		} catch (IOException e) {
+			return 0;
+		}
+		for (int i = rows.size() - 1; i >= 0; --i) {
+			if (size == capacity) {
+				--size;
+				newest = false;
+			}
+			start = (start - 1 + capacity) % capacity;
+			ring[start] = rows.get(i);
+			++size;
+		}
+		if (!rows.isEmpty()) notifyDataSetChanged();
+		return rows.size();
+	}
+
+	/**
+	 * Pages in newer rows behind the window, dropping the oldest rows if needed. Returns the number of rows dropped.
+	 */
+	public int loadNewer() {
+		if (newest || size == 0) return 0;
+		List<MessageHistory.Row> rows;
+		try {
+			final long end = get(size - 1).end();
+			rows = filter != null ? history.readFrom(filter, end, pageSize) : history.readFrom(end, pageSize);
+		} catch (IOException e) {
+			return 0;
+		}
+		int dropped = 0;
+		for (MessageHistory.Row row : rows) dropped += addLast(row);
+		if (rows.size() < pageSize) newest = true;
+		notifyDataSetChanged();
+		return dropped;
+	}
+
+	public boolean hasNewer() { return !newest; }
+
+	@Override
+	public int getCount() { return size; }
+
+	@Override
+	public Object getItem(int position) { return get(position); }
+
+	@Override
+	public long getItemId(int position) { return get(position).offset; }
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) (convertView != null ? convertView : inflater.inflate(R.layout.chat_row, parent, false));
+		MessageHistory.Row row = get(position);
+		String message;
+		try {
+			message = history.getMessage(row);
+		} catch (IOException e) {
+			message = "(message unavailable)";
+		}
+		view.setText(row.address != null ? senders.intern(row.address).label + message : message);
+		return view;
+	}
+
+	private boolean shows(MessageHistory.Row row) { return filter == null || filter.equals(row.address); }
+
+	private MessageHistory.Row get(int position) { return ring[(start + position) % capacity]; }
+
+	/** Adds a row at the end of the window. Returns 1 if the oldest row had to be dropped, 0 otherwise. */
+	private int addLast(MessageHistory.Row row) {
+		ring[(start + size) % capacity] = row;
+		if (size < capacity) {
+			++size;
+			return 0;
+		}
+		start = (start + 1) % capacity;
+		return 1;
+	}
+}
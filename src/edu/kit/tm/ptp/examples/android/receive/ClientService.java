@@ -1,273 +1,1047 @@
-package edu.kit.tm.ptp.examples.android.receive;
-
-import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import edu.kit.tm.ptp.Identifier;
-import edu.kit.tm.ptp.ReceiveListenerAdapter;
-import edu.kit.tm.ptp.PTP;
-import edu.kit.tm.ptp.utility.Constants;
-import edu.kit.tm.ptp.examples.android.receive.R;
-
-
-import android.app.Notification;
-import android.app.PendingIntent;
-import android.app.Service;
-import android.content.Intent;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
-import android.os.RemoteException;
-import android.support.v4.app.NotificationCompat;
-import android.widget.Toast;
-
-/**
- * Service for running PTP. Communicates with MainActivity.java
- * 
- * @see http://stackoverflow.com/questions/4300291/example-communication-between-activity-and-service-using-messaging
- *
- * @author Simeon Andreev
- * @author Martin Florian
- *
- */
-public class ClientService extends Service {
-
-	// Where hidden services data will be stored
-	public static final String serviceHSDirectory = "TheHiddenService";
-
-	// Strings for formatting app-internal messages
-	public static final String MESSAGE = "message";
-	public static final String ADDRESS = "address";
-	public static final String ID = "id";
-
-	// Message types for app-internal messages
-	public static final int MSG_REGISTER_CLIENT = 1;
-	public static final int MSG_UNREGISTER_CLIENT = 2;
-	public static final int MSG_SEND_MESSAGE = 3;
-	public static final int MSG_RECEIVE_MESSAGE = 4;
-	public static final int MSG_IDENTIFIER = 5;
-	public static final int MSG_MESSAGE_STATUS = 6;
-
-	private static boolean running = false;
-
-	/**
-	 * Handler for incoming messages from {@link MainActivity}.
-	 * 
-	 * @see MainActivity
-	 */	
-	private static class IncomingHandler extends Handler {
-
-		private final WeakReference<ClientService> service;
-
-		public IncomingHandler(WeakReference<ClientService> service) { this.service = service; }
-
-		@Override
-		public void handleMessage(final Message msg) {
-			if (msg.what == MSG_REGISTER_CLIENT) {
-				
-				try {
-					// Notify client of missed messages.
-					while (!service.get().receivedQueue.isEmpty()) {
-						edu.kit.tm.ptp.Message element = service.get().receivedQueue.peek();
-						Bundle bundle = new Bundle();
-						bundle.putString(MESSAGE, element.content);
-						bundle.putString(ADDRESS, element.identifier.toString());
-						android.os.Message message = android.os.Message.obtain(null, MSG_RECEIVE_MESSAGE);
-						message.setData(bundle);
-						msg.replyTo.send(message);
-						service.get().receivedQueue.remove();
-					}
-				} catch (RemoteException e) {
-					return;
-				}
-				service.get().client = msg.replyTo;
-
-			} else if (msg.what == MSG_UNREGISTER_CLIENT) {
-				service.get().client = null;
-			} else {
-				super.handleMessage(msg);
-			}
-		}
-	}
-
-	private final Messenger messenger = new Messenger(new IncomingHandler(new WeakReference<ClientService>(this)));
-	private ConcurrentLinkedQueue<edu.kit.tm.ptp.Message> receivedQueue = new ConcurrentLinkedQueue<edu.kit.tm.ptp.Message>();
-	private PTP ptp = null;
-	private Messenger client = null;
-
-	@Override
-	public void onCreate() {
-		super.onCreate();
-		running = true;
-	}
-
-	@Override
-	public int onStartCommand(Intent intent, int flags, int startId) {
-		
-		startInNotificationArea();
-		
-		startTor();	// runs startPTP() on completion
-		
-		return START_STICKY; // tell Android to restart this services should it be killed
-	}
-	
-	/**
-	 * Starts PTP thread. Called from {@link #startTor()}.
-	 * 
-	 * @param workingDirectory
-	 * @param controlPort
-	 * @param socksPort
-	 * @param localPort
-	 */
-	private void startPTP(String workingDirectory, int controlPort, int socksPort, int localPort) {
-
-		try {
-			ptp = new PTP(workingDirectory, controlPort, socksPort, localPort, serviceHSDirectory);
-			ptp.setListener(new ReceiveListenerAdapter() {
-
-				// Pass PTP messages to MainActivity
-				@Override
-				public void receivedMessage(edu.kit.tm.ptp.Message message) {
-					if (client == null) {
-						receivedQueue.add(message);
-						return;
-					}
-					try {
-						Bundle b = new Bundle();
-						b.putString(MESSAGE, message.content);
-						b.putString(ADDRESS, message.identifier.getTorAddress());
-						android.os.Message msg = android.os.Message.obtain(null, MSG_RECEIVE_MESSAGE);
-						msg.setData(b);
-						client.send(msg);
-					} catch (RemoteException e) {
-						client = null;
-					}
-				}
-			});
-			new Thread(new Runnable() {
-
-				@Override
-				public void run() {
-					try {
-						// Set up Hidden Service
-						ptp.reuseHiddenService();
-					} catch (IOException e) {
-						throw new RuntimeException(e.getMessage());
-					}
-					try {
-						// Tell client our own PTP Identifier
-						Identifier identifier = ptp.getIdentifier();
-						Bundle bundle = new Bundle();
-						bundle.putString(ADDRESS, identifier.toString());
-						android.os.Message message = android.os.Message.obtain(null, MSG_IDENTIFIER);
-						message.setData(bundle);
-						client.send(message);
-					} catch (RemoteException e) {
-						client = null;
-					}
-				}
-			}).start();
-		} catch (IOException e) {
-			throw new RuntimeException(e.getMessage());
-		}
-	}
-
-	/**
-	 * Makes service visible in notification area. In this way, it won't be killed so quickly by the OS.
-	 */
-	private void startInNotificationArea() {
-		Intent notificationIntent = new Intent(this, MainActivity.class);
-		PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
-		Notification notification = new NotificationCompat.Builder(this)
-			.setContentTitle("PTP Client")
-			.setSmallIcon(R.drawable.ic_launcher)
-			.setContentIntent(pendingIntent)
-			.build();
-		startForeground(42, notification);
-	}
-	
-	@Override
-	public IBinder onBind(Intent intent) { return messenger.getBinder(); }
-
-	@Override
-	public void onDestroy() {
-		
-		running = false;
-		
-		stopTor();
-		if (ptp != null) ptp.exit();
-	}
-
-	public static boolean isRunning() { return running; }
-	
-	/**
-	 * Starts Tor using {@link TorManager}. Runs {@link #startPTP(String, int, int, int)} on success.
-	 * 
-	 * In case a different Tor manager should be used (e.g., Orbot) - rewrite this.
-	 */
-	private void startTor() {
-		
-		TorManager.start(this, new TorManager.Listener() {
-			
-			@Override
-			public void success(final String message) {
-				
-				// Feedback for user
-				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
-				
-				// Get Tor config options
-				final String directory = TorManager.getWorkingDirectory(getFilesDir().getPath());
-				final int start = message.indexOf(TorManager.delimiter) + 1;
-				final int middle = message.indexOf(TorManager.delimiter, start) + 1;
-				final int controlPort = Integer.valueOf(message.substring(start, middle - 1));
-				final int socksPort = Integer.valueOf(message.substring(middle));
-				
-				// start PeerTorPeer
-				startPTP(directory, controlPort, socksPort, Constants.anyport);	
-			}
-
-			@Override
-			public void update(String message) {
-				// Feedback for user
-				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
-			}
-
-			@Override
-			public void failure(String message) {
-				// Feedback for user
-				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
-			}
-		});
-	}
-
-	/**
-	 * Stop Tor using {@link TorManager}.
-	 * 
-	 * In case a different Tor manager should be used (e.g., Orbot) - rewrite this.
-	 */
-	private synchronized void stopTor() {
-		TorManager.stop(this, new TorManager.Listener() {
-
-			@Override
-			public void success(String message) {
-				// Feedback for user
-				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
-			}
-
-			@Override
-			public void update(String message) {
-				// Feedback for user
-				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
-			}
-
-			@Override
-			public void failure(String message) {
-				// Feedback for user
-				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
-			}
-		});
-	}
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.kit.tm.ptp.ReceiveListener;
+import edu.kit.tm.ptp.ReceiveListenerAdapter;
+import edu.kit.tm.ptp.examples.android.receive.R;
+
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.widget.Toast;
+
+/**
+ * Service for running PTP. Communicates with MainActivity.java
+ * 
+ * @see http://stackoverflow.com/questions/4300291/example-communication-between-activity-and-service-using-messaging
+ *
+ * @author Simeon Andreev
+ * @author Martin Florian
+ *
+ */
+public class ClientService extends Service {
+
+	// Where hidden services data will be stored
+	public static final String serviceHSDirectory = "TheHiddenService";
+
+	// Strings for formatting app-internal messages
+	public static final String MESSAGE = "message";
+	public static final String ADDRESS = "address";
+	public static final String ID = "id";
+	public static final String MESSAGES = "messages";
+	public static final String ADDRESSES = "addresses";
+	public static final String SEQUENCE = "sequence";
+	public static final String SEQUENCES = "sequences";
+	// Epoch of the sequence numbers, see MessageJournal.getEpoch(). Acknowledgements of another epoch are ignored.
+	public static final String EPOCH = "epoch";
+	public static final String RECEIVED_AT = "receivedAt";
+	public static final String PROFILE = "profile";
+	// Handles of payloads passed through the PayloadArena instead of MESSAGE respectively MESSAGES
+	public static final String PAYLOAD = "payload";
+	public static final String PAYLOADS = "payloads";
+	public static final String LOG = "log";
+	public static final String CREDITS = "credits";
+	public static final String FAILURE = "failure";
+	// Name of the identity which received a message, sends one or is meant by MSG_IDENTIFIER, see Identities
+	public static final String IDENTITY = "identity";
+	public static final String IDENTITIES = "identities";
+	// Extras of the intent starting the service which select an external Tor, see ExternalTor
+	public static final String EXTRA_TOR_CONTROL_PORT = "torControlPort";
+	public static final String EXTRA_TOR_SOCKS_PORT = "torSocksPort";
+	public static final String EXTRA_TOR_COOKIE = "torCookie";
+	public static final String EXTRA_EMBEDDED_TOR = "embeddedTor";
+
+	// Message types for app-internal messages
+	public static final int MSG_REGISTER_CLIENT = 1;
+	public static final int MSG_UNREGISTER_CLIENT = 2;
+	// ADDRESS: destination, MESSAGE: content, ID: chosen by the client, reported in MSG_MESSAGE_STATUS,
+	// IDENTITY: the identity to send from (the default identity if missing)
+	public static final int MSG_SEND_MESSAGE = 3;
+	public static final int MSG_RECEIVE_MESSAGE = 4;
+	public static final int MSG_IDENTIFIER = 5; // IDENTITY and its ADDRESS, which is missing once the identity is removed
+	// From a client: SEQUENCE of the last message processed and CREDITS for further messages.
+	// To a client: ID of a sent message and FAILURE (the reason) unless it was sent.
+	public static final int MSG_MESSAGE_STATUS = 6;
+	public static final int MSG_SET_BATCHING = 7; // arg1: batching window in milliseconds (0 disables batching), arg2: maximum batch size
+	public static final int MSG_STATS = 8; // sent by a client with replyTo set, answered with a bundle of ReceiveMetrics
+	public static final int MSG_SET_PROFILE = 9; // PROFILE: name of a PTPConfiguration.Profile, used on the next start of PTP
+	public static final int MSG_TOR_LOG = 10; // sent by a client with replyTo set, answered with the last lines of Tor's output in LOG
+	public static final int MSG_ADD_IDENTITY = 11; // IDENTITY: name of the identity, answered with MSG_IDENTIFIER once it is up
+	public static final int MSG_REMOVE_IDENTITY = 12; // IDENTITY: name of the identity
+
+	// Size limit (in bytes) and overflow policy of the journal of messages received while no client is registered
+	public static final int journalCapacity = MessageJournal.defaultCapacity;
+	public static final MessageJournal.Overflow journalOverflow = MessageJournal.Overflow.DROP_OLDEST;
+
+	// Number of journaled messages replayed to a registering client before other work on the delivery thread gets a turn
+	public static final int replayChunk = 32;
+	// Delay (in milliseconds) before the replay checks again whether the workers of its clients are done
+	public static final long replayBusyDelay = 5;
+
+	// Size (a power of two) and wait strategy of the ring between the PTP receive thread and the handoff thread
+	public static final int handoffCapacity = ReceiveRing.defaultCapacity;
+	public static final ReceiveRing.WaitStrategy handoffWait = ReceiveRing.WaitStrategy.PARK;
+
+	// Number of senders whose address is cached, and the duplicate filter's size and window (in milliseconds)
+	public static final int senderCapacity = SenderTable.defaultCapacity;
+	public static final int duplicateCapacity = DuplicateFilter.defaultCapacity;
+	public static final long duplicateWindow = DuplicateFilter.defaultWindow;
+	// Sizes of the sender table and the duplicate filter while memory is low, see MemoryPressure
+	public static final int trimmedSenderCapacity = 32;
+	public static final int trimmedDuplicateCapacity = 128;
+
+	// Number of deliveries queued per client before further ones are dropped for it
+	public static final int subscriberQueue = Subscriber.defaultQueueSize;
+
+	private static boolean running = false;
+
+	/**
+	 * Handler for incoming messages from {@link MainActivity}.
+	 * 
+	 * @see MainActivity
+	 */	
+	private static class IncomingHandler extends Handler {
+
+		private final WeakReference<ClientService> service;
+
+		public IncomingHandler(WeakReference<ClientService> service) { this.service = service; }
+
+		@Override
+		public void handleMessage(final Message msg) {
+			if (msg.what == MSG_REGISTER_CLIENT) {
+				// The client passes the sequence number (and epoch) of the last message it has seen and its initial credits, if any.
+				Bundle data = msg.peekData();
+				service.get().register(msg.replyTo, data != null ? service.get().acknowledged(data) : -1,
+						data != null ? data.getInt(CREDITS, Subscriber.unlimited) : Subscriber.unlimited);
+			} else if (msg.what == MSG_UNREGISTER_CLIENT) {
+				service.get().unregister(msg.replyTo);
+			} else if (msg.what == MSG_SEND_MESSAGE) {
+				Bundle data = msg.getData();
+				final String identity = data.getString(IDENTITY);
+				service.get().send(new Outbox.Outgoing(data.getLong(ID, -1), identity != null ? identity : Identities.defaultName,
+						data.getString(ADDRESS), data.getString(MESSAGE), msg.replyTo));
+			} else if (msg.what == MSG_MESSAGE_STATUS) {
+				Bundle data = msg.peekData();
+				if (data != null) service.get().status(msg.replyTo, service.get().acknowledged(data), data.getInt(CREDITS, 0));
+			} else if (msg.what == MSG_STATS) {
+				// A request without replyTo cannot be answered, drop it.
+				if (msg.replyTo == null) return;
+				try {
+					android.os.Message reply = android.os.Message.obtain(null, MSG_STATS);
+					reply.setData(service.get().stats());
+					msg.replyTo.send(reply);
+				} catch (RemoteException e) {
+					service.get().metrics.sendFailures.incrementAndGet();
+				}
+			} else if (msg.what == MSG_TOR_LOG) {
+				if (msg.replyTo == null) return;
+				try {
+					android.os.Message reply = android.os.Message.obtain(null, MSG_TOR_LOG);
+					Bundle bundle = new Bundle();
+					bundle.putString(LOG, TorManager.getLog().dump());
+					reply.setData(bundle);
+					msg.replyTo.send(reply);
+				} catch (RemoteException e) {
+					service.get().metrics.sendFailures.incrementAndGet();
+				}
+			} else if (msg.what == MSG_ADD_IDENTITY) {
+				Bundle data = msg.peekData();
+				if (data != null) service.get().identities.add(data.getString(IDENTITY));
+			} else if (msg.what == MSG_REMOVE_IDENTITY) {
+				Bundle data = msg.peekData();
+				if (data != null) service.get().identities.remove(data.getString(IDENTITY));
+			} else if (msg.what == MSG_SET_BATCHING) {
+				service.get().batcher.configure(msg.arg1, msg.arg2 > 0 ? msg.arg2 : MessageBatcher.defaultMaxSize);
+			} else if (msg.what == MSG_SET_PROFILE) {
+				Bundle data = msg.peekData();
+				PTPConfiguration.Profile profile = PTPConfiguration.Profile.forName(data != null ? data.getString(PROFILE) : null);
+				if (profile != null) PTPConfiguration.setProfile(service.get(), profile);
+			} else {
+				super.handleMessage(msg);
+			}
+		}
+	}
+
+	private final Messenger messenger = new Messenger(new IncomingHandler(new WeakReference<ClientService>(this)));
+	private MessageJournal journal = null;
+	private PayloadArena payloads = null;
+	private Identities identities = null;
+	private MessageBatcher batcher = null;
+	private ReceiveRing<edu.kit.tm.ptp.Message> handoff = null;
+	private Outbox outbox = null;
+	private MemoryPressure pressure = null;
+	private final SenderTable senders = new SenderTable(senderCapacity);
+	private final DuplicateFilter duplicates = new DuplicateFilter(duplicateCapacity, duplicateWindow);
+	private final ReceiveMetrics metrics = ReceiveMetrics.get();
+
+	// Guards the hand-over between live delivery and the journal, so messages reach the clients in order.
+	private final Object deliveryLock = new Object();
+	// Clients receiving live messages. Empty while no client is registered or while missed messages are replayed.
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	// Clients to which missed messages are being replayed. Guarded by the delivery lock.
+	private final List<Subscriber> replaying = new ArrayList<Subscriber>();
+	// Runs the delivery workers of the subscribers
+	private ExecutorService workers = null;
+	private HandlerThread deliveryThread = null;
+	private final Handler main = new Handler();
+	private StartupPipeline startup = null;
+	// Our own PTP identifiers by identity, once known. Guarded by this.
+	private final Map<String, String> identifiers = new LinkedHashMap<String, String>();
+	private Handler delivery = null;
+	// Start of this session and the received messages counted before it, for the traffic statistics of PTPConfiguration
+	private long created = 0;
+	private long receivedBefore = 0;
+
+	/**
+	 * Receives the messages of the PTP instance of an identity and tags them with its name.
+	 *
+	 * Only hands the messages to the handoff thread, so the PTP receive thread is never held up by delivery. The
+	 * messages of all identities meet in the handoff ring and reach the clients as one stream.
+	 */
+	private class Receiver extends ReceiveListenerAdapter {
+
+		private final String identity;
+
+		public Receiver(String identity) { this.identity = identity; }
+
+		@Override
+		public void receivedMessage(edu.kit.tm.ptp.Message message) {
+			metrics.received.incrementAndGet();
+			handoff.publish(message, SystemClock.uptimeMillis(), identity);
+		}
+	}
+
+	/** Receives the messages of the default identity. */
+	private final ReceiveListener receiver = new Receiver(Identities.defaultName);
+
+	/**
+	 * Passes PTP messages to the clients, or to the journal if there are none. Drops duplicates. Runs on the handoff
+	 * thread.
+	 */
+	private final ReceiveRing.Consumer<edu.kit.tm.ptp.Message> deliverer = new ReceiveRing.Consumer<edu.kit.tm.ptp.Message>() {
+
+		@Override
+		public void consume(edu.kit.tm.ptp.Message message, long receivedAt, String identity) {
+			final SenderTable.Sender sender = senders.intern(message.identifier);
+			if (duplicates.isDuplicate(sender.id, identity, message.content, receivedAt)) return;
+			synchronized (deliveryLock) {
+				if (subscribers.isEmpty()) {
+					keep(identity, sender.address, message.content);
+					return;
+				}
+				if (batcher.isBatching()) {
+					batcher.add(message, identity);
+					return;
+				}
+				publish(new Subscriber.Delivery(new String[] { identity }, new String[] { sender.address }, new String[] { message.content },
+						new long[] { journal.nextSequence() }, receivedAt));
+			}
+		}
+	};
+
+	/**
+	 * Replays a chunk of journaled messages to the registering clients and reposts itself until the journal is empty.
+	 * Then the clients are switched to live delivery.
+	 */
+	private final Runnable replay = new Runnable() {
+
+		@Override
+		public void run() {
+			List<Subscriber> targets;
+			synchronized (deliveryLock) {
+				targets = new ArrayList<Subscriber>(replaying);
+			}
+			// A worker may still be sending what it took from its queue before the queue was moved to the journal. That
+			// delivery is older than the journaled ones, so it has to reach the client first.
+			for (Subscriber target : targets) {
+				if (target.isIdle()) continue;
+				delivery.postDelayed(this, replayBusyDelay);
+				return;
+			}
+
+			for (int i = 0; i < replayChunk && !targets.isEmpty(); ++i) {
+				// Go on once every client has credit again, see status().
+				for (Subscriber target : targets) if (!target.hasCredit()) return;
+				MessageJournal.Entry entry = journal.peek();
+				if (entry == null) break;
+				Subscriber.Delivery missed = new Subscriber.Delivery(new String[] { entry.identity }, new String[] { senders.intern(entry.address).address },
+						new String[] { entry.content }, new long[] { entry.sequence }, -1);
+				for (Iterator<Subscriber> iterator = targets.iterator(); iterator.hasNext();) {
+					Subscriber target = iterator.next();
+					// Skip messages the client already has.
+					if (entry.sequence <= target.getAcknowledged()) continue;
+					try {
+						target.send(missed);
+						metrics.replayed.incrementAndGet();
+						metrics.delivered.incrementAndGet();
+					} catch (RemoteException e) {
+						metrics.sendFailures.incrementAndGet();
+						target.cancel();
+						iterator.remove();
+						synchronized (deliveryLock) {
+							replaying.remove(target);
+						}
+					}
+				}
+				// Without clients left, the rest stays journaled for the next registration.
+				if (targets.isEmpty()) return;
+				journal.remove(entry.sequence);
+			}
+
+			synchronized (deliveryLock) {
+				if (replaying.isEmpty()) return;
+				if (journal.isEmpty()) {
+					subscribers.addAll(replaying);
+					replaying.clear();
+					return;
+				}
+			}
+			delivery.post(this);
+		}
+	};
+
+	/**
+	 * Builds the messages for the subscribers and keeps the messages of evicted subscribers.
+	 */
+	private final Subscriber.Owner owner = new Subscriber.Owner() {
+
+		@Override
+		public android.os.Message message(Subscriber.Delivery delivery) {
+			synchronized (delivery) {
+				// Large contents are written to the payload arena only once.
+				if (delivery.data == null) delivery.data = toBundle(delivery);
+			}
+			android.os.Message msg = android.os.Message.obtain(null, MSG_RECEIVE_MESSAGE);
+			msg.setData(delivery.data);
+			return msg;
+		}
+
+		@Override
+		public void delivered(Subscriber subscriber, Subscriber.Delivery delivery) { metrics.delivered.addAndGet(delivery.size()); }
+
+		@Override
+		public void failed(Subscriber subscriber, Subscriber.Delivery delivery) { metrics.sendFailures.incrementAndGet(); }
+
+		/**
+		 * Moves the backlog of the only live client to the journal while it is out of credit. It gets the messages by
+		 * replay once it grants credits again. Called from publish() with the delivery lock held.
+		 */
+		@Override
+		public boolean stalled(Subscriber subscriber, Subscriber.Delivery delivery) {
+			// Other clients still take live messages, which are only journaled while there are none.
+			if (subscribers.size() != 1 || !subscribers.remove(subscriber)) return false;
+			List<Subscriber.Delivery> backlog = subscriber.drain();
+			backlog.add(delivery);
+			for (Subscriber.Delivery diverted : backlog) {
+				keep(diverted);
+				metrics.diverted.addAndGet(diverted.size());
+			}
+			replaying.add(subscriber);
+			return true;
+		}
+
+		@Override
+		public void evicted(Subscriber subscriber, List<Subscriber.Delivery> undelivered) {
+			metrics.evictions.incrementAndGet();
+			synchronized (deliveryLock) {
+				subscribers.remove(subscriber);
+				replaying.remove(subscriber);
+				// Nobody else got these either, keep them for the next registration.
+				if (!subscribers.isEmpty()) return;
+				for (Subscriber.Delivery delivery : undelivered) keep(delivery);
+			}
+		}
+	};
+
+	/**
+	 * Reports the outcome of a sent message to the client which sent it.
+	 */
+	private final Outbox.Listener sendStatus = new Outbox.Listener() {
+
+		@Override
+		public void completed(Outbox.Outgoing message, String failure) {
+			if (message.replyTo == null) return;
+			Bundle bundle = new Bundle();
+			bundle.putLong(ID, message.id);
+			if (failure != null) bundle.putString(FAILURE, failure);
+			android.os.Message status = android.os.Message.obtain(null, MSG_MESSAGE_STATUS);
+			status.setData(bundle);
+			try {
+				message.replyTo.send(status);
+			} catch (RemoteException e) {
+				metrics.sendFailures.incrementAndGet();
+			}
+		}
+	};
+
+	/**
+	 * Connects the identities to the receive pipeline, the outbox and the clients.
+	 */
+	private final Identities.Listener identityListener = new Identities.Listener() {
+
+		@Override
+		public ReceiveListener receiver(String name) { return Identities.defaultName.equals(name) ? receiver : new Receiver(name); }
+
+		@Override
+		public void started(Identities.Identity identity) {
+			startup.record("identity " + identity.name, identity.started, identity.ready, false);
+			// Tell client our own PTP Identifier
+			publishIdentifier(identity.name, identity.address);
+			// Send what the clients queued meanwhile.
+			outbox.setPTP(identity.name, identity.ptp);
+		}
+
+		@Override
+		public void failed(String name, long started, final Exception e) {
+			startup.record("identity " + name, started, SystemClock.uptimeMillis(), true);
+			main.post(new Runnable() {
+
+				@Override
+				public void run() { Toast.makeText(ClientService.this, "Starting PTP failed: " + e.getMessage(), Toast.LENGTH_SHORT).show(); }
+			});
+		}
+
+		@Override
+		public void stopped(Identities.Identity identity) {
+			outbox.remove(identity.name);
+			publishIdentifier(identity.name, null);
+		}
+	};
+
+	/**
+	 * Spills the messages queued for the clients to the journal. Runs on the delivery thread.
+	 */
+	private final Runnable spill = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (deliveryLock) {
+				spill();
+			}
+		}
+	};
+
+	/**
+	 * Gives memory back while memory is low and takes it again afterwards, so the service survives the pressure
+	 * rather than being killed and started cold.
+	 */
+	private final MemoryPressure.Listener pressureListener = new MemoryPressure.Listener() {
+
+		@Override
+		public void changed(MemoryPressure.Level level, MemoryPressure.Level previous) {
+			// Messages queued from now on spill once they exceed the budget of the level, see publish().
+			if (level.compareTo(MemoryPressure.Level.LOW) >= 0) delivery.post(spill);
+
+			final boolean trimmed = level.compareTo(MemoryPressure.Level.MODERATE) >= 0;
+			if (trimmed != previous.compareTo(MemoryPressure.Level.MODERATE) >= 0) {
+				senders.setCapacity(trimmed ? trimmedSenderCapacity : senderCapacity);
+				duplicates.setCapacity(trimmed ? trimmedDuplicateCapacity : duplicateCapacity);
+				if (trimmed) outbox.trim();
+			}
+
+			final boolean limited = level == MemoryPressure.Level.CRITICAL;
+			if (limited != (previous == MemoryPressure.Level.CRITICAL)) limitTor(limited);
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		running = true;
+		created = SystemClock.uptimeMillis();
+		receivedBefore = metrics.received.get();
+		try {
+			// Messages for absent clients are kept on disk, so they survive the service being killed.
+			journal = new MessageJournal(getFilesDir(), journalCapacity, journalOverflow);
+			payloads = new PayloadArena(getFilesDir(), PayloadArena.defaultCapacity);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		workers = Executors.newCachedThreadPool();
+		outbox = new Outbox(workers, sendStatus);
+		identities = new Identities(this, workers, identityListener);
+		pressure = new MemoryPressure(main, pressureListener);
+		handoff = new ReceiveRing<edu.kit.tm.ptp.Message>(handoffCapacity, handoffWait, deliverer);
+		handoff.start();
+		deliveryThread = new HandlerThread("ClientService delivery", Process.THREAD_PRIORITY_BACKGROUND);
+		deliveryThread.start();
+		delivery = new Handler(deliveryThread.getLooper());
+		batcher = new MessageBatcher(delivery, new MessageBatcher.Sink() {
+
+			@Override
+			public void deliver(List<edu.kit.tm.ptp.Message> batch, List<String> identities, long opened) { sendBatch(batch, identities, opened); }
+		}, deliveryLock);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		
+		startInNotificationArea();
+		
+		// A backend chosen by a later intent is used once Tor starts again.
+		chooseTorBackend(intent);
+		// Android calls this on every startService(), the service only starts once.
+		if (startup != null) return START_STICKY;
+		startup = new StartupPipeline();
+		// Read our identifier from the hidden service of the last run while Tor starts.
+		startup.submit("hidden service keys", new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				final String address = readHiddenServiceAddress();
+				if (address != null) publishIdentifier(Identities.defaultName, address);
+				return null;
+			}
+		});
+		startTor();	// runs startPTP() on completion
+		
+		return START_STICKY; // tell Android to restart this services should it be killed
+	}
+	
+	/**
+	 * Starts PTP. Called from {@link #startTor()}.
+	 * 
+	 * Every identity gets a PTP instance with its own hidden service, local port and receive thread, all on the one Tor.
+	 * The identities start side by side, each reports to {@link #identityListener} once its hidden service is up.
+	 * 
+	 * @param workingDirectory
+	 * @param ports
+	 */
+	private void startPTP(final String workingDirectory, final TorPorts ports) {
+		startup.submit("ptp", new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				PTPConfiguration.write(ClientService.this, new File(workingDirectory + "/config/ptp.ini"));
+				identities.attach(workingDirectory, ports);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queues a message of a client in the outbox, unless it lacks its destination or content or its identity is unknown.
+	 */
+	private void send(Outbox.Outgoing message) {
+		if (message.destination == null || message.content == null) sendStatus.completed(message, Outbox.INVALID_MESSAGE);
+		else if (identities.getNames().contains(message.identity)) outbox.send(message);
+		else sendStatus.completed(message, Outbox.UNKNOWN_IDENTITY);
+	}
+
+	/**
+	 * Remembers the identifier of an identity, or forgets it for null, and sends it to the clients. Registering clients
+	 * get the identifiers on registration.
+	 */
+	private synchronized void publishIdentifier(String identity, String address) {
+		if (address == null ? !identifiers.containsKey(identity) : address.equals(identifiers.get(identity))) return;
+		if (address != null) {
+			identifiers.put(identity, address);
+			startup.record("identifier (" + identity + ")", SystemClock.uptimeMillis(), SystemClock.uptimeMillis(), false);
+		} else {
+			identifiers.remove(identity);
+		}
+		List<Subscriber> targets = new ArrayList<Subscriber>(subscribers);
+		synchronized (deliveryLock) {
+			targets.addAll(replaying);
+		}
+		for (Subscriber target : targets) {
+			try {
+				sendIdentifier(target.messenger, identity, address);
+			} catch (RemoteException e) {
+				metrics.sendFailures.incrementAndGet();
+			}
+		}
+	}
+
+	private static void sendIdentifier(Messenger target, String identity, String address) throws RemoteException {
+		Bundle bundle = new Bundle();
+		bundle.putString(IDENTITY, identity);
+		if (address != null) bundle.putString(ADDRESS, address);
+		android.os.Message message = android.os.Message.obtain(null, MSG_IDENTIFIER);
+		message.setData(bundle);
+		target.send(message);
+	}
+
+	/**
+	 * Reads the onion address of the hidden service from its hostname file, or returns null if there is none yet.
+	 */
+	private String readHiddenServiceAddress() throws IOException {
+		File hostname = findHostnameFile(new File(TorManager.getWorkingDirectory(getFilesDir().getPath())), 2);
+		if (hostname == null) return null;
+		BufferedReader reader = new BufferedReader(new FileReader(hostname));
+		try {
+			final String line = reader.readLine();
+			return line != null && line.trim().length() > 0 ? line.trim() : null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Looks for the hostname file of our hidden service directory below the given directory.
+	 */
+	private static File findHostnameFile(File directory, int depth) {
+		File[] children = directory.listFiles();
+		if (children == null) return null;
+		for (File child : children) {
+			if (!child.isDirectory()) continue;
+			if (child.getName().equals(serviceHSDirectory)) {
+				File hostname = new File(child, "hostname");
+				if (hostname.exists()) return hostname;
+			}
+			if (depth > 1) {
+				File found = findHostnameFile(child, depth - 1);
+				if (found != null) return found;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Registers a client. Messages it missed are replayed on the delivery thread before it receives live messages.
+	 * Registering a client again replaces its earlier registration.
+	 *
+	 * Messages are only journaled while no client receives live messages, so a client either joins the live clients
+	 * right away or, while there are missed messages, waits for their replay.
+	 *
+	 * @param acknowledged The sequence number of the last message the client has seen, or -1.
+	 * @param credits The number of messages the client takes before granting more, or {@link Subscriber#unlimited}.
+	 */
+	private void register(Messenger messenger, long acknowledged, int credits) {
+		Subscriber subscriber = new Subscriber(messenger, acknowledged, credits, owner, workers, subscriberQueue);
+		boolean missed;
+		synchronized (deliveryLock) {
+			remove(messenger);
+			// Hand a pending batch to the current clients, or to the journal.
+			batcher.flush();
+			missed = !journal.isEmpty() || !replaying.isEmpty();
+			if (missed) replaying.add(subscriber);
+			else subscribers.add(subscriber);
+		}
+		if (missed) delivery.post(replay);
+		Map<String, String> known;
+		synchronized (this) {
+			known = new LinkedHashMap<String, String>(identifiers);
+		}
+		try {
+			for (Map.Entry<String, String> identifier : known.entrySet()) sendIdentifier(messenger, identifier.getKey(), identifier.getValue());
+		} catch (RemoteException e) {
+			metrics.sendFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Unregisters a client. A pending batch goes to the remaining clients, or to the journal if there are none.
+	 */
+	private void unregister(Messenger messenger) {
+		synchronized (deliveryLock) {
+			remove(messenger);
+			batcher.flush();
+		}
+	}
+
+	/**
+	 * Returns the sequence number a client acknowledges, or -1 if it refers to another epoch of the journal, e.g. one
+	 * from before the journal was lost.
+	 */
+	private long acknowledged(Bundle data) {
+		return data.getLong(EPOCH, 0) == journal.getEpoch() ? data.getLong(SEQUENCE, -1) : -1;
+	}
+
+	/**
+	 * Takes a MSG_MESSAGE_STATUS of a client. Resumes the replay to the client if it was waiting for credit.
+	 */
+	private void status(Messenger messenger, long acknowledged, int credits) {
+		boolean resume = false;
+		synchronized (deliveryLock) {
+			for (Subscriber subscriber : subscribers)
+				if (subscriber.messenger.equals(messenger)) subscriber.grant(credits, acknowledged);
+			for (Subscriber subscriber : replaying) {
+				if (!subscriber.messenger.equals(messenger)) continue;
+				subscriber.grant(credits, acknowledged);
+				resume = true;
+			}
+		}
+		if (resume) delivery.post(replay);
+	}
+
+	private void unregisterAll() {
+		synchronized (deliveryLock) {
+			for (Subscriber subscriber : subscribers) subscriber.cancel();
+			for (Subscriber subscriber : replaying) subscriber.cancel();
+			subscribers.clear();
+			replaying.clear();
+			batcher.flush();
+		}
+	}
+
+	/**
+	 * Removes the registration of a client, if any. Called with the delivery lock held.
+	 */
+	private void remove(Messenger messenger) {
+		if (messenger == null) return;
+		for (Subscriber subscriber : subscribers) {
+			if (!subscriber.messenger.equals(messenger)) continue;
+			subscriber.cancel();
+			subscribers.remove(subscriber);
+		}
+		for (Iterator<Subscriber> iterator = replaying.iterator(); iterator.hasNext();) {
+			Subscriber subscriber = iterator.next();
+			if (!subscriber.messenger.equals(messenger)) continue;
+			subscriber.cancel();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Queues a delivery for every live client. Spills the queues if they hold more than the current memory pressure
+	 * allows. Called with the delivery lock held.
+	 */
+	private void publish(Subscriber.Delivery delivery) {
+		for (Subscriber subscriber : subscribers) subscriber.offer(delivery);
+		if (queuedBytes() > pressure.getLevel().queueBudget) spill();
+	}
+
+	/**
+	 * Returns the bytes of the messages queued for the clients.
+	 */
+	private long queuedBytes() {
+		long bytes = 0;
+		for (Subscriber subscriber : subscribers) bytes += subscriber.getQueuedBytes();
+		return bytes;
+	}
+
+	/**
+	 * Moves the messages queued for the live clients to the journal and replays them from there. The messages keep
+	 * their sequence numbers, so a client is not replayed what it got before the spill. Called with the delivery lock
+	 * held.
+	 */
+	private void spill() {
+		if (subscribers.isEmpty()) return;
+		// Live clients share the deliveries, and the journal is empty while there are any.
+		TreeMap<Long, Subscriber.Delivery> queued = new TreeMap<Long, Subscriber.Delivery>();
+		for (Subscriber subscriber : subscribers)
+			for (Subscriber.Delivery delivery : subscriber.drain()) queued.put(delivery.sequences[0], delivery);
+		for (Subscriber.Delivery spilled : queued.values()) {
+			for (int i = 0; i < spilled.size(); ++i) {
+				if (journal.append(spilled.identities[i], spilled.addresses[i], spilled.contents[i], spilled.sequences[i]))
+					metrics.spilled.incrementAndGet();
+			}
+		}
+		metrics.backlog(journal.size());
+		replaying.addAll(subscribers);
+		subscribers.clear();
+		delivery.post(replay);
+	}
+
+	/**
+	 * Builds the message data of a delivery. A single message goes as MESSAGE, a batch as MESSAGES. Large contents
+	 * go through the payload arena.
+	 */
+	private Bundle toBundle(Subscriber.Delivery delivery) {
+		Bundle b = new Bundle();
+		b.putLong(RECEIVED_AT, delivery.receivedAt);
+		b.putLong(EPOCH, journal.getEpoch());
+		if (delivery.size() == 1) {
+			final String content = delivery.contents[0];
+			final long[] handle = PayloadArena.isLarge(content) ? payloads.write(content) : null;
+			if (handle != null) b.putLongArray(PAYLOAD, handle);
+			else b.putString(MESSAGE, content);
+			b.putString(ADDRESS, delivery.addresses[0]);
+			b.putString(IDENTITY, delivery.identities[0]);
+			b.putLong(SEQUENCE, delivery.sequences[0]);
+			return b;
+		}
+
+		final String[] messages = delivery.contents.clone();
+		// Handles of the large contents, the message is null for those
+		long[] handles = null;
+		for (int i = 0; i < messages.length; ++i) {
+			final long[] handle = PayloadArena.isLarge(messages[i]) ? payloads.write(messages[i]) : null;
+			if (handle == null) continue;
+			if (handles == null) handles = new long[messages.length * PayloadArena.handleSize];
+			System.arraycopy(handle, 0, handles, i * PayloadArena.handleSize, PayloadArena.handleSize);
+			messages[i] = null;
+		}
+		b.putStringArray(MESSAGES, messages);
+		if (handles != null) b.putLongArray(PAYLOADS, handles);
+		b.putStringArray(ADDRESSES, delivery.addresses);
+		b.putStringArray(IDENTITIES, delivery.identities);
+		b.putLongArray(SEQUENCES, delivery.sequences);
+		return b;
+	}
+
+	/**
+	 * Hands a batch of PTP messages to the clients as a single message each. Journals the batch if there are none.
+	 * Called with the delivery lock held.
+	 */
+	private void sendBatch(List<edu.kit.tm.ptp.Message> batch, List<String> identities, long opened) {
+		if (subscribers.isEmpty()) {
+			keep(batch, identities);
+			return;
+		}
+
+		final String[] contents = new String[batch.size()];
+		final String[] addresses = new String[batch.size()];
+		final long[] sequences = new long[batch.size()];
+		for (int i = 0; i < contents.length; ++i) {
+			contents[i] = batch.get(i).content;
+			addresses[i] = senders.intern(batch.get(i).identifier).address;
+			sequences[i] = journal.nextSequence();
+		}
+		publish(new Subscriber.Delivery(identities.toArray(new String[identities.size()]), addresses, contents, sequences, opened));
+	}
+
+	/**
+	 * Appends messages to the journal for delivery once a client registers.
+	 */
+	private void keep(List<edu.kit.tm.ptp.Message> messages, List<String> identities) {
+		for (int i = 0; i < messages.size(); ++i) keep(identities.get(i), senders.intern(messages.get(i).identifier).address, messages.get(i).content);
+	}
+
+	private void keep(String identity, String address, String content) {
+		if (journal.append(identity, address, content)) metrics.journaled.incrementAndGet();
+		metrics.backlog(journal.size());
+	}
+
+	/**
+	 * Journals a delivery taken back from a client. The messages keep their sequence numbers, like spilled ones.
+	 */
+	private void keep(Subscriber.Delivery delivery) {
+		for (int i = 0; i < delivery.size(); ++i) {
+			if (journal.append(delivery.identities[i], delivery.addresses[i], delivery.contents[i], delivery.sequences[i]))
+				metrics.journaled.incrementAndGet();
+		}
+		metrics.backlog(journal.size());
+	}
+
+	/**
+	 * Makes service visible in notification area. In this way, it won't be killed so quickly by the OS.
+	 */
+	private void startInNotificationArea() {
+		Intent notificationIntent = new Intent(this, MainActivity.class);
+		PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
+		Notification notification = new NotificationCompat.Builder(this)
+			.setContentTitle("PTP Client")
+			.setSmallIcon(R.drawable.ic_launcher)
+			.setContentIntent(pendingIntent)
+			.build();
+		startForeground(42, notification);
+	}
+	
+	@Override
+	public IBinder onBind(Intent intent) { return messenger.getBinder(); }
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		pressure.trim(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		pressure.lowMemory();
+	}
+
+	/**
+	 * Lowers or resets the memory limit of Tor, off the main thread since it talks to the control port.
+	 */
+	private void limitTor(final boolean limited) {
+		workers.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					TorManager.limitMemory(limited);
+				} catch (IOException e) {
+					// Tor keeps its limit until the next level change or its next start.
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onDestroy() {
+		
+		running = false;
+		
+		PTPConfiguration.recordSession(this, metrics.received.get() - receivedBefore, SystemClock.uptimeMillis() - created);
+		unregisterAll();
+		pressure.cancel();
+		outbox.cancel();
+		// Before the workers, which run the starts of the identities. A start under way then exits its PTP.
+		identities.shutdown();
+		workers.shutdown();
+		// Messages still in the ring go to the journal. The handoff thread may post to the delivery thread until then.
+		handoff.stop();
+		deliveryThread.quit();
+		stopTor();
+		if (startup != null) startup.shutdown();
+		journal.close();
+		payloads.close();
+	}
+
+	public static boolean isRunning() { return running; }
+
+	/**
+	 * Returns the receive metrics, the hit counters of the sender table and the duplicate filter, the outbox counters and
+	 * the startup time and memory of Tor, the running identities and the memory pressure, for MSG_STATS.
+	 */
+	private Bundle stats() {
+		Bundle bundle = metrics.toBundle(journal.size(), handoff);
+		bundle.putLong(ReceiveMetrics.SENDER_HITS, senders.hits());
+		bundle.putLong(ReceiveMetrics.SENDER_MISSES, senders.misses());
+		bundle.putLong(ReceiveMetrics.DUPLICATE_CHECKS, duplicates.checks());
+		bundle.putLong(ReceiveMetrics.DUPLICATES, duplicates.duplicates());
+		bundle.putInt(ReceiveMetrics.OUTBOX_QUEUED, outbox.queued());
+		bundle.putInt(ReceiveMetrics.OUTBOX_HIGH_WATER, outbox.highWater());
+		bundle.putLong(ReceiveMetrics.SENT, outbox.sent());
+		bundle.putLong(ReceiveMetrics.SEND_FAILED, outbox.failed());
+		bundle.putLong(ReceiveMetrics.SEND_LATENCY_P50, outbox.latency().percentile(50));
+		bundle.putLong(ReceiveMetrics.SEND_LATENCY_P99, outbox.latency().percentile(99));
+		bundle.putString(ReceiveMetrics.TOR_BACKEND, TorManager.getBackend().getName());
+		bundle.putLong(ReceiveMetrics.TOR_STARTUP, TorManager.getStartupTime());
+		bundle.putLong(ReceiveMetrics.TOR_MEMORY, TorManager.getBackend().getMemory());
+		List<String> running = new ArrayList<String>();
+		for (Identities.Identity identity : identities.getRunning()) running.add(identity.name);
+		bundle.putStringArray(ReceiveMetrics.IDENTITIES, running.toArray(new String[running.size()]));
+		bundle.putLong(ReceiveMetrics.QUEUED_BYTES, queuedBytes());
+		bundle.putString(ReceiveMetrics.MEMORY_PRESSURE, pressure.getLevel().name());
+		return bundle;
+	}
+
+	/**
+	 * Dumps the receive metrics, e.g. for adb shell dumpsys activity service ClientService.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		metrics.dump(writer, journal.size(), handoff);
+		senders.dump(writer);
+		duplicates.dump(writer);
+		outbox.dump(writer);
+		pressure.dump(writer, queuedBytes());
+		writer.println("Tor: backend=" + TorManager.getBackend().getName() + " state=" + TorManager.getState() + " startup="
+				+ TorManager.getStartupTime() + "ms memory=" + TorManager.getBackend().getMemory() + "kB");
+		writer.println("Identities: " + identities.getNames());
+		for (Identities.Identity identity : identities.getRunning())
+			writer.println("  " + identity.name + " address=" + identity.address + " startup=" + (identity.ready - identity.started) + "ms");
+		writer.println("Tor output:");
+		for (String line : TorManager.getLog().getLines()) writer.println("  " + line);
+		writer.println("Clients: " + subscribers.size());
+		for (Subscriber subscriber : subscribers)
+			writer.println("  queued=" + subscriber.getQueued() + " acknowledged=" + subscriber.getAcknowledged() + " credits=" + subscriber.getCredits());
+		synchronized (deliveryLock) {
+			for (Subscriber subscriber : replaying)
+				writer.println("  replaying acknowledged=" + subscriber.getAcknowledged() + " credits=" + subscriber.getCredits());
+		}
+		if (startup != null) startup.dump(writer);
+	}
+	
+	/**
+	 * Chooses how {@link TorManager} gets a Tor. The starting intent may select an external Tor, which is remembered for
+	 * restarts, or switch back to our own. Without such extras the last choice stays.
+	 */
+	private void chooseTorBackend(Intent intent) {
+		if (intent != null && intent.hasExtra(EXTRA_TOR_CONTROL_PORT)) {
+			ExternalTor.configure(this, intent.getIntExtra(EXTRA_TOR_CONTROL_PORT, -1), intent.getIntExtra(EXTRA_TOR_SOCKS_PORT, -1),
+					intent.getStringExtra(EXTRA_TOR_COOKIE));
+		} else if (intent != null && intent.getBooleanExtra(EXTRA_EMBEDDED_TOR, false)) {
+			ExternalTor.clear(this);
+		}
+		TorManager.setBackend(ExternalTor.load(this));
+	}
+
+	/**
+	 * Starts Tor using {@link TorManager} and its backend. Runs {@link #startPTP(String, TorPorts)} on success.
+	 */
+	private void startTor() {
+		
+		final long torStarted = SystemClock.uptimeMillis();
+		TorManager.start(this, new TorManager.Listener() {
+			
+			@Override
+			public void success(final String message) {
+				
+				// Feedback for user
+				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
+				
+				startup.record("tor (" + TorManager.getBackend().getName() + ")", torStarted, SystemClock.uptimeMillis(), false);
+				
+				// Get Tor config options
+				final String directory = TorManager.getWorkingDirectory(getFilesDir().getPath());
+				
+				// start PeerTorPeer
+				startPTP(directory, TorManager.getPorts());
+			}
+
+			@Override
+			public void update(String message) {
+				// Feedback for user
+				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
+			}
+
+			@Override
+			public void failure(String message) {
+				startup.record("tor (" + TorManager.getBackend().getName() + ")", torStarted, SystemClock.uptimeMillis(), true);
+				// Feedback for user
+				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
+			}
+		});
+	}
+
+	/**
+	 * Stop Tor using {@link TorManager}.
+	 */
+	private synchronized void stopTor() {
+		TorManager.stop(this, new TorManager.Listener() {
+
+			@Override
+			public void success(String message) {
+				// Feedback for user
+				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
+			}
+
+			@Override
+			public void update(String message) {
+				// Feedback for user
+				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
+			}
+
+			@Override
+			public void failure(String message) {
+				// Feedback for user
+				Toast.makeText(ClientService.this, message, Toast.LENGTH_SHORT).show();
+			}
+		});
+	}
 }
\ No newline at end of file
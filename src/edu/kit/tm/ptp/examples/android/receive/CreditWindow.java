@@ -0,0 +1,63 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+/**
+ * The client side of the flow control between {@link ClientService} and {@link MainActivity}.
+ *
+ * The service sends a client only as many messages as the client granted credits for, and keeps the rest in its
+ * backlog. The client grants credits again as it processes messages, in one MSG_MESSAGE_STATUS once half of the window
+ * is used up. The window is sized to the number of messages the client can process within {@link #targetDelay} at its
+ * measured drain rate, so a slow client keeps its looper queue short and a fast one is not held back.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class CreditWindow {
+
+	public static final int initialWindow = 64;
+	public static final int minWindow = 8;
+	public static final int maxWindow = 1024;
+	/** Processing time (in milliseconds) the messages in flight may take at most. */
+	public static final long targetDelay = 250;
+	/** Weight of a new sample in the average processing time per message. */
+	private static final double smoothing = 0.2;
+
+	private int window = initialWindow;
+	// Credits granted and not used yet. Negative when the service sent a batch on the last credits, see Subscriber.
+	private int outstanding = 0;
+	// Average processing time per message in milliseconds, 0 until measured
+	private double cost = 0;
+
+	/**
+	 * Starts a new session, e.g. on registration. Returns the credits to grant initially.
+	 */
+	public int open() {
+		outstanding = window;
+		return window;
+	}
+
+	/**
+	 * Records processed messages and adapts the window. Returns the credits to grant now, 0 if none.
+	 *
+	 * @param elapsed The time (in milliseconds) processing the messages took.
+	 */
+	public int processed(int count, long elapsed) {
+		if (count <= 0) return 0;
+		// No clamp at zero: the grant has to cover the overdraft, or the service is left without credit.
+		outstanding -= count;
+		final double sample = (double) elapsed / count;
+		cost = cost == 0 ? sample : cost + smoothing * (sample - cost);
+		// Sub-millisecond costs allow the largest window.
+		final long fit = cost > 0 ? (long) (targetDelay / cost) : maxWindow;
+		window = (int) Math.max(minWindow, Math.min(maxWindow, fit));
+
+		if (outstanding > window / 2) return 0;
+		final int grant = window - outstanding;
+		outstanding = window;
+		return grant;
+	}
+
+	public int getWindow() { return window; }
+
+	/** Average processing time per message in milliseconds. */
+	public double getCost() { return cost; }
+}
@@ -0,0 +1,91 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops messages which arrive again from the same sender within a time window, e.g. when PTP retries a send.
+ *
+ * Messages are keyed on the compact sender ID of a {@link SenderTable} and the hash of their content and the identity
+ * which received them, so a sender can reach several identities with the same content. Two different messages of a
+ * sender with the same hash within the window are taken for duplicates; with 32 bit hashes that is rare enough for a
+ * chat. The filter remembers at most a given number of keys.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class DuplicateFilter {
+
+	public static final int defaultCapacity = 1024;
+	public static final long defaultWindow = 30 * 1000;
+
+	private int capacity;
+	private final long window;
+	// Time each key was first seen within the window, oldest first
+	private final LinkedHashMap<Long, Long> seen = new LinkedHashMap<Long, Long>();
+	private long checks = 0;
+	private long duplicates = 0;
+
+	/**
+	 * @param window Time (in milliseconds) within which a message counts as duplicate.
+	 */
+	public DuplicateFilter(int capacity, long window) {
+		this.capacity = capacity;
+		this.window = window;
+	}
+
+	/**
+	 * Returns whether a message was seen within the window. Otherwise remembers it. The window starts when a message is
+	 * first seen, so a sender which keeps resending does not keep its messages filtered forever.
+	 *
+	 * @param identity The name of the identity which received the message.
+	 * @param now The current time in milliseconds, e.g. {@link android.os.SystemClock#uptimeMillis()}.
+	 */
+	public synchronized boolean isDuplicate(int sender, String identity, String content, long now) {
+		++checks;
+		expire(now);
+		final int hash = content.hashCode() * 31 + identity.hashCode();
+		final Long key = Long.valueOf(((long) sender << 32) | (hash & 0xffffffffL));
+		// Expired keys are gone already.
+		if (seen.containsKey(key)) {
+			++duplicates;
+			return true;
+		}
+		seen.put(key, Long.valueOf(now));
+		shrink();
+		return false;
+	}
+
+	/**
+	 * Changes the number of remembered keys, forgetting the oldest ones if there are too many. Duplicates of forgotten
+	 * messages are let through.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		shrink();
+	}
+
+	public synchronized long checks() { return checks; }
+
+	public synchronized long duplicates() { return duplicates; }
+
+	public synchronized void dump(PrintWriter writer) {
+		writer.println("Duplicates: checks=" + checks + " dropped=" + duplicates + " tracked=" + seen.size() + " capacity=" + capacity + " window=" + window);
+	}
+
+	private void shrink() {
+		for (Iterator<Long> oldest = seen.keySet().iterator(); seen.size() > capacity && oldest.hasNext();) {
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+	private void expire(long now) {
+		for (Iterator<Map.Entry<Long, Long>> iterator = seen.entrySet().iterator(); iterator.hasNext();) {
+			if (now - iterator.next().getValue() < window) return;
+			iterator.remove();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Attaches to a Tor which runs anyway on this device, e.g. one shared by several PTP apps, instead of running a Tor
+ * of our own. Nothing is extracted and no Tor process is started or stopped, so the memory, CPU time and bootstrap
+ * time of a private Tor are saved.
+ *
+ * The control port is given, the SOCKS port is given or asked from Tor. The control connection authenticates with the
+ * content of a cookie file if one is configured. The Tor must be able to access the hidden service directory of PTP in
+ * our working directory.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class ExternalTor implements TorBackend {
+
+	private static final String keyControlPort = "externalTorControlPort";
+	private static final String keySocksPort = "externalTorSocksPort";
+	private static final String keyCookie = "externalTorCookie";
+
+	private final int controlPort;
+	private final int socksPort;
+	private final String cookieFile;
+
+	/**
+	 * @param socksPort The SOCKS port, or -1 to ask Tor for it.
+	 * @param cookieFile The control authentication cookie file of Tor, or null if it needs no authentication.
+	 */
+	public ExternalTor(int controlPort, int socksPort, String cookieFile) {
+		this.controlPort = controlPort;
+		this.socksPort = socksPort;
+		this.cookieFile = cookieFile;
+	}
+
+	/**
+	 * Saves an external Tor to attach to on the following starts of the service.
+	 */
+	public static void configure(Context context, int controlPort, int socksPort, String cookieFile) {
+		preferences(context).edit()
+			.putInt(keyControlPort, controlPort)
+			.putInt(keySocksPort, socksPort)
+			.putString(keyCookie, cookieFile)
+			.commit();
+	}
+
+	/**
+	 * Forgets the external Tor, so the service runs its own Tor again.
+	 */
+	public static void clear(Context context) {
+		preferences(context).edit().remove(keyControlPort).remove(keySocksPort).remove(keyCookie).commit();
+	}
+
+	/**
+	 * Returns the saved external Tor, or null if none is configured.
+	 */
+	public static ExternalTor load(Context context) {
+		SharedPreferences preferences = preferences(context);
+		final int controlPort = preferences.getInt(keyControlPort, -1);
+		if (controlPort == -1) return null;
+		return new ExternalTor(controlPort, preferences.getInt(keySocksPort, -1), preferences.getString(keyCookie, null));
+	}
+
+	@Override
+	public TorPorts start(Context context) throws Exception {
+		// PTP keeps its configuration and hidden service keys in the working directory, whichever Tor it uses.
+		new File(TorManager.getWorkingDirectory(context.getFilesDir().getPath())).mkdirs();
+
+		// A stop interrupts the wait below.
+		TorManager.advance(TorManager.State.BOOTSTRAPPING);
+		TorControlChannel control = TorManager.getControlChannel();
+		control.setSecret(cookieFile != null ? readCookie(cookieFile) : null);
+		if (!control.probe(controlPort)) throw new IOException("No Tor accepts connections at control port " + controlPort + ".");
+		// Usually the Tor is bootstrapped already. If it was just started, wait for it like for our own.
+		TorManager.waitForBootstrap();
+		return new TorPorts(controlPort, socksPort != -1 ? socksPort : TorManager.getSocksPort());
+	}
+
+	/**
+	 * Disconnects. The Tor is left running for the other apps.
+	 */
+	@Override
+	public String stop(Context context) {
+		TorManager.getControlChannel().close();
+		return "Detached from Tor at control port " + controlPort + ".";
+	}
+
+	@Override
+	public long getMemory() { return 0; }
+
+	@Override
+	public String getName() { return "external"; }
+
+	private static SharedPreferences preferences(Context context) {
+		return context.getSharedPreferences(PTPConfiguration.preferences, Context.MODE_PRIVATE);
+	}
+
+	private static byte[] readCookie(String path) throws IOException {
+		File file = new File(path);
+		byte[] cookie = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < cookie.length) {
+				final int count = in.read(cookie, read, cookie.length - read);
+				if (count < 0) throw new IOException("Unexpected end of " + path);
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return cookie;
+	}
+}
@@ -0,0 +1,239 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import edu.kit.tm.ptp.PTP;
+import edu.kit.tm.ptp.ReceiveListener;
+import edu.kit.tm.ptp.utility.Constants;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * The PTP identities of {@link ClientService}, each a PTP instance with its own hidden service over the one Tor of
+ * {@link TorManager}.
+ *
+ * Every identity has its own hidden service directory, local port and PTP receive thread. The default identity uses the
+ * hidden service directory of earlier versions, so its address stays the same. Further identities are added and
+ * removed at runtime and remembered for the next start; Tor keeps running meanwhile.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class Identities {
+
+	/** A running identity. */
+	public static class Identity {
+
+		public final String name;
+		public final PTP ptp;
+		/** Our PTP identifier for this identity. */
+		public final String address;
+		/** Time ({@link SystemClock#uptimeMillis()}) the identity was started and was up. */
+		public final long started;
+		public final long ready;
+
+		public Identity(String name, PTP ptp, String address, long started, long ready) {
+			this.name = name;
+			this.ptp = ptp;
+			this.address = address;
+			this.started = started;
+			this.ready = ready;
+		}
+	}
+
+	/** The service side of the identities. Called on the starting thread. */
+	public static interface Listener {
+
+		/** Returns the listener for the messages received by an identity. */
+		public ReceiveListener receiver(String name);
+
+		public void started(Identity identity);
+
+		public void failed(String name, long started, Exception e);
+
+		public void stopped(Identity identity);
+	}
+
+	// The journal does not tag the messages of the default identity
+	public static final String defaultName = MessageJournal.untaggedIdentity;
+	private static final String keyIdentities = "identities";
+	private static final String separator = ",";
+
+	private final Context context;
+	private final Executor executor;
+	private final Listener listener;
+	// Names of the wanted identities, and the running ones
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Identity> running = new LinkedHashMap<String, Identity>();
+	// Names of the identities whose PTP is being created, and of those to start again once that is done
+	private final Set<String> starting = new HashSet<String>();
+	private final Set<String> restart = new HashSet<String>();
+	// Where PTP runs, once Tor is up
+	private String workingDirectory = null;
+	private TorPorts ports = null;
+
+	public Identities(Context context, Executor executor, Listener listener) {
+		this.context = context;
+		this.executor = executor;
+		this.listener = listener;
+		names.add(defaultName);
+		final String saved = context.getSharedPreferences(PTPConfiguration.preferences, Context.MODE_PRIVATE).getString(keyIdentities, "");
+		for (String name : Arrays.asList(saved.split(separator)))
+			if (isValidName(name) && !names.contains(name)) names.add(name);
+	}
+
+	/**
+	 * Returns the hidden service directory of an identity.
+	 */
+	public static String hiddenServiceDirectory(String name) {
+		return defaultName.equals(name) ? ClientService.serviceHSDirectory : ClientService.serviceHSDirectory + "-" + name;
+	}
+
+	/**
+	 * Names consist of lower case letters, digits and dashes, so they fit into directory names and the preferences.
+	 */
+	public static boolean isValidName(String name) {
+		if (name == null || name.length() == 0 || name.length() > 32) return false;
+		for (int i = 0; i < name.length(); ++i) {
+			final char c = name.charAt(i);
+			if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '-') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts all identities on the given Tor. Identities added later are started right away.
+	 */
+	public void attach(String workingDirectory, TorPorts ports) {
+		List<String> starting;
+		synchronized (this) {
+			this.workingDirectory = workingDirectory;
+			this.ports = ports;
+			starting = new ArrayList<String>(names);
+		}
+		for (String name : starting) start(name);
+	}
+
+	/**
+	 * Adds an identity and starts it if Tor is up. Returns false if the name is invalid or taken.
+	 */
+	public boolean add(String name) {
+		synchronized (this) {
+			if (!isValidName(name) || names.contains(name)) return false;
+			names.add(name);
+			save();
+			if (ports == null) return true;
+		}
+		start(name);
+		return true;
+	}
+
+	/**
+	 * Stops an identity and forgets it. The default identity cannot be removed. Its hidden service directory is kept,
+	 * so adding the identity again brings back its address.
+	 */
+	public boolean remove(String name) {
+		Identity identity;
+		synchronized (this) {
+			if (defaultName.equals(name) || !names.remove(name)) return false;
+			save();
+			identity = running.remove(name);
+		}
+		if (identity != null) stop(identity);
+		return true;
+	}
+
+	public synchronized Identity get(String name) { return running.get(name); }
+
+	/** Returns the running identities. */
+	public synchronized List<Identity> getRunning() { return new ArrayList<Identity>(running.values()); }
+
+	public synchronized List<String> getNames() { return new ArrayList<String>(names); }
+
+	/**
+	 * Stops all identities, e.g. when the service stops.
+	 */
+	public void shutdown() {
+		List<Identity> stopping;
+		synchronized (this) {
+			ports = null;
+			stopping = new ArrayList<Identity>(running.values());
+			running.clear();
+		}
+		for (Identity identity : stopping) stop(identity);
+	}
+
+	private void start(final String name) {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final long started = SystemClock.uptimeMillis();
+				String directory;
+				TorPorts tor;
+				synchronized (Identities.this) {
+					directory = workingDirectory;
+					tor = ports;
+					if (tor == null || !names.contains(name) || running.containsKey(name)) return;
+					// Only one PTP at a time on a hidden service directory, e.g. when an identity is removed and added
+					// again while it starts. The start under way checks again once it is done.
+					if (!starting.add(name)) {
+						restart.add(name);
+						return;
+					}
+				}
+				PTP ptp = null;
+				try {
+					ptp = new PTP(directory, tor.controlPort, tor.socksPort, Constants.anyport, hiddenServiceDirectory(name));
+					ptp.setListener(listener.receiver(name));
+					ptp.reuseHiddenService();
+					Identity identity = new Identity(name, ptp, ptp.getIdentifier().toString(), started, SystemClock.uptimeMillis());
+					synchronized (Identities.this) {
+						// Removed or stopped while starting.
+						if (ports == null || !names.contains(name) || running.containsKey(name)) {
+							ptp.exit();
+							return;
+						}
+						running.put(name, identity);
+					}
+					listener.started(identity);
+				} catch (Exception e) {
+					if (ptp != null) ptp.exit();
+					listener.failed(name, started, e);
+				} finally {
+					boolean again;
+					synchronized (Identities.this) {
+						starting.remove(name);
+						// Not after shutdown(), the executor may be gone.
+						again = restart.remove(name) && ports != null;
+					}
+					if (again) start(name);
+				}
+			}
+		});
+	}
+
+	private void stop(Identity identity) {
+		identity.ptp.exit();
+		listener.stopped(identity);
+	}
+
+	/** Called with the lock held. */
+	private void save() {
+		StringBuilder saved = new StringBuilder();
+		for (String name : names) {
+			if (defaultName.equals(name)) continue;
+			if (saved.length() > 0) saved.append(separator);
+			saved.append(name);
+		}
+		context.getSharedPreferences(PTPConfiguration.preferences, Context.MODE_PRIVATE).edit().putString(keyIdentities, saved.toString()).commit();
+	}
+}
@@ -1,161 +1,345 @@
-package edu.kit.tm.ptp.examples.android.receive;
-
-import java.lang.ref.WeakReference;
-
-import edu.kit.tm.ptp.examples.android.receive.R;
-
-import android.app.Activity;
-import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
-import android.os.RemoteException;
-import android.widget.TextView;
-import android.widget.Toast;
-
-/**
- * Standard Android activity. Displays messages received via the ClientService and PTP.
- * 
- * @author Simeon Andreev
- * @author Martin Florian
- *
- */
-public class MainActivity extends Activity {
-	
-	/**
-	 * Handler for incoming messages from {@link ClientService}.
-	 * 
-	 * @see ClientService
-	 */	
-	private static class IncomingHandler extends Handler {
-
-		private final WeakReference<MainActivity> activity;
-
-		public IncomingHandler(WeakReference<MainActivity> activity) { this.activity = activity; }
-
-		@Override
-		public void handleMessage(Message msg) {
-			if (msg.what == ClientService.MSG_RECEIVE_MESSAGE) {
-				Bundle bundle = msg.getData();
-				String message = bundle.getString(ClientService.MESSAGE);
-				String address = bundle.getString(ClientService.ADDRESS);
-				activity.get().showMessage(message, address);
-			} else if (msg.what == ClientService.MSG_IDENTIFIER) {
-				Bundle bundle = msg.getData();
-				activity.get().showOwnIdentifier(bundle.getString(ClientService.ADDRESS));
-			} else {
-				super.handleMessage(msg);
-			}
-		}
-	}
-
-	private ServiceConnection mConnection = new ServiceConnection() {
-
-		public void onServiceConnected(ComponentName className, IBinder service) {
-			clientService = new Messenger(service);
-
-			Toast.makeText(MainActivity.this, "Connected to service.", Toast.LENGTH_SHORT).show();
-			try {
-				Message msg = Message.obtain(null, ClientService.MSG_REGISTER_CLIENT);
-				msg.replyTo = messenger;
-				clientService.send(msg);
-			} catch (RemoteException e) {
-				// In this case the service has crashed before we could even do anything with it
-			}
-		}
-
-		public void onServiceDisconnected(ComponentName className) {
-			clientService = null;
-			Toast.makeText(MainActivity.this, "Disconnected from service.", Toast.LENGTH_SHORT).show();
-		}
-	};
-
-	private Messenger messenger = new Messenger(new IncomingHandler(new WeakReference<MainActivity>(this)));
-	private Messenger clientService;
-	private boolean bound = false;
-	
-	private TextView chatBox = null;
-
-	@Override
-	protected void onCreate(Bundle savedInstanceState) {
-		super.onCreate(savedInstanceState);
-		setContentView(R.layout.activity_main);
-		
-		chatBox = (TextView)findViewById(R.id.chatbox);
-
-		if (ClientService.isRunning()) bindService();
-		else startClient();
-	}
-
-	@Override
-	protected void onDestroy() {
-		super.onDestroy();
-		try {
-			stopClient();
-		} catch (Exception e) {
-
-		}
-	}
-
-	private void startClient() {
-		if (ClientService.isRunning()) return;
-		
-		Intent intent = new Intent(MainActivity.this, ClientService.class);
-		startService(intent);
-		bindService();
-	}
-
-	private void stopClient() {
-
-		unbindService();
-		stopService(new Intent(MainActivity.this, ClientService.class));
-	}
-
-	/**
-	 * Prints a message from somebody on the chatBox
-	 */
-	private void showMessage(String message, String address) {
-		chatBox.append(address + ": ");
-		chatBox.append(message);
-		chatBox.append("\n");
-	}
-	
-	/**
-	 * Prints own ptp identifier (passed as argument) on the chatBox
-	 */
-	public void showOwnIdentifier(String address) {
-		chatBox.append("Own Address: " + address);
-		chatBox.append("\n");
-	}
-
-	private void bindService() {
-		bindService(new Intent(this, ClientService.class), mConnection, Context.BIND_AUTO_CREATE);
-		bound = true;
-		Toast.makeText(this, "Connecting to service.", Toast.LENGTH_SHORT).show();
-	}
-	
-	private void unbindService() {
-		if (!bound) return;
-
-		// If we have received the service, and hence registered with it, then now is the time to unregister.
-		if (clientService != null) {
-			try {
-				Message msg = Message.obtain(null, ClientService.MSG_UNREGISTER_CLIENT);
-				msg.replyTo = messenger;
-				clientService.send(msg);
-			}
-			catch (RemoteException e) {
-
-			}
-		}
-		// Detach our existing connection.
-		unbindService(mConnection);
-		bound = false;
-		Toast.makeText(this, "Disconnecting from service.", Toast.LENGTH_SHORT).show();
-	}
-}
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+import edu.kit.tm.ptp.examples.android.receive.R;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.ListView;
+import android.widget.Toast;
+
+/**
+ * Standard Android activity. Displays messages received via the ClientService and PTP.
+ * 
+ * @author Simeon Andreev
+ * @author Martin Florian
+ *
+ */
+public class MainActivity extends Activity {
+	
+	/**
+	 * Handler for incoming messages from {@link ClientService}.
+	 * 
+	 * @see ClientService
+	 */	
+	private static class IncomingHandler extends Handler {
+
+		private final WeakReference<MainActivity> activity;
+
+		public IncomingHandler(WeakReference<MainActivity> activity) { this.activity = activity; }
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what == ClientService.MSG_RECEIVE_MESSAGE) {
+				final long started = SystemClock.uptimeMillis();
+				Bundle bundle = msg.getData();
+				String[] messages = bundle.getStringArray(ClientService.MESSAGES);
+				if (messages != null) {
+					activity.get().showMessages(messages, bundle.getLongArray(ClientService.PAYLOADS), bundle.getStringArray(ClientService.ADDRESSES), bundle.getLongArray(ClientService.SEQUENCES),
+							bundle.getLong(ClientService.EPOCH, 0));
+					recordLatency(bundle, messages.length);
+					activity.get().processed(messages.length, SystemClock.uptimeMillis() - started);
+					return;
+				}
+				String message = bundle.getString(ClientService.MESSAGE);
+				String address = bundle.getString(ClientService.ADDRESS);
+				activity.get().showMessage(message, bundle.getLongArray(ClientService.PAYLOAD), address, bundle.getLong(ClientService.SEQUENCE, -1),
+						bundle.getLong(ClientService.EPOCH, 0));
+				recordLatency(bundle, 1);
+				activity.get().processed(1, SystemClock.uptimeMillis() - started);
+			} else if (msg.what == ClientService.MSG_IDENTIFIER) {
+				Bundle bundle = msg.getData();
+				activity.get().showOwnIdentifier(bundle.getString(ClientService.IDENTITY), bundle.getString(ClientService.ADDRESS));
+			} else {
+				super.handleMessage(msg);
+			}
+		}
+
+		/**
+		 * Records the receive-to-display latency of shown messages. Replayed messages carry no receive time.
+		 */
+		private void recordLatency(Bundle bundle, int count) {
+			final long receivedAt = bundle.getLong(ClientService.RECEIVED_AT, -1);
+			if (receivedAt == -1) return;
+			final long latency = SystemClock.uptimeMillis() - receivedAt;
+			for (int i = 0; i < count; ++i) ReceiveMetrics.get().latency.record(latency);
+		}
+	}
+
+	private ServiceConnection mConnection = new ServiceConnection() {
+
+		public void onServiceConnected(ComponentName className, IBinder service) {
+			clientService = new Messenger(service);
+
+			Toast.makeText(MainActivity.this, "Connected to service.", Toast.LENGTH_SHORT).show();
+			try {
+				Message msg = Message.obtain(null, ClientService.MSG_REGISTER_CLIENT);
+				msg.replyTo = messenger;
+				// Let the service resume behind the last message we have seen.
+				Bundle bundle = new Bundle();
+				acknowledge(bundle);
+				bundle.putInt(ClientService.CREDITS, credits.open());
+				msg.setData(bundle);
+				clientService.send(msg);
+			} catch (RemoteException e) {
+				// In this case the service has crashed before we could even do anything with it
+			}
+		}
+
+		public void onServiceDisconnected(ComponentName className) {
+			clientService = null;
+			Toast.makeText(MainActivity.this, "Disconnected from service.", Toast.LENGTH_SHORT).show();
+		}
+	};
+
+	private static final String keyEpoch = "journalEpoch";
+	private static final String keyBase = "historyBase";
+
+	private Messenger messenger = new Messenger(new IncomingHandler(new WeakReference<MainActivity>(this)));
+	private Messenger clientService;
+	private boolean bound = false;
+	// Sequence number of the last message shown, as kept in the history. Used to drop messages delivered twice.
+	private long lastSequence = -1;
+	// Epoch of the sequence numbers of the service, and the history's sequence number of its first number
+	private long epoch = 0;
+	private long base = 0;
+	// Credits for the messages of the service
+	private final CreditWindow credits = new CreditWindow();
+	
+	private ListView chatList = null;
+	private ChatAdapter chatAdapter = null;
+	private MessageHistory history = null;
+	// Large messages from the service, read by handle
+	private PayloadArena payloads = null;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.activity_main);
+		
+		try {
+			history = new MessageHistory(new File(getFilesDir(), MessageHistory.historyDirectory));
+			payloads = new PayloadArena(getFilesDir(), PayloadArena.defaultCapacity);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		lastSequence = history.getLastSequence();
+		SharedPreferences preferences = getSharedPreferences(PTPConfiguration.preferences, Context.MODE_PRIVATE);
+		epoch = preferences.getLong(keyEpoch, 0);
+		base = preferences.getLong(keyBase, 0);
+		chatAdapter = new ChatAdapter(getLayoutInflater(), history);
+		chatAdapter.loadLatest();
+		chatList = (ListView)findViewById(R.id.chatlist);
+		chatList.setAdapter(chatAdapter);
+		chatList.setSelection(chatAdapter.getCount() - 1);
+		chatList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+
+			@Override
+			public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+				// Long press on a message shows only its sender's messages, another long press shows all again.
+				MessageHistory.Row row = (MessageHistory.Row) chatAdapter.getItem(position);
+				if (chatAdapter.getFilter() == null && row.address == null) return false;
+				chatAdapter.setFilter(chatAdapter.getFilter() == null ? row.address : null);
+				chatList.setSelection(chatAdapter.getCount() - 1);
+				Toast.makeText(MainActivity.this, chatAdapter.getFilter() != null ? "Showing " + chatAdapter.getFilter() : "Showing all messages.", Toast.LENGTH_SHORT).show();
+				return true;
+			}
+		});
+		chatList.setOnScrollListener(new AbsListView.OnScrollListener() {
+
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) { }
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+				if (visibleItemCount == 0) return;
+				if (firstVisibleItem == 0) {
+					// Keep the rows in view where they are while older ones are added above.
+					View first = chatList.getChildAt(0);
+					final int added = chatAdapter.loadOlder();
+					if (added > 0) chatList.setSelectionFromTop(added, first != null ? first.getTop() : 0);
+				} else if (firstVisibleItem + visibleItemCount >= totalItemCount && chatAdapter.hasNewer()) {
+					View first = chatList.getChildAt(0);
+					final int dropped = chatAdapter.loadNewer();
+					if (dropped > 0) chatList.setSelectionFromTop(firstVisibleItem - dropped, first != null ? first.getTop() : 0);
+				}
+			}
+		});
+
+		if (ClientService.isRunning()) bindService();
+		else startClient();
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		try {
+			stopClient();
+		} catch (Exception e) {
+
+		}
+		history.close();
+		payloads.close();
+	}
+
+	private void startClient() {
+		if (ClientService.isRunning()) return;
+		
+		Intent intent = new Intent(MainActivity.this, ClientService.class);
+		startService(intent);
+		bindService();
+	}
+
+	private void stopClient() {
+
+		unbindService();
+		stopService(new Intent(MainActivity.this, ClientService.class));
+	}
+
+	/**
+	 * Shows a message from somebody in the chat list
+	 *
+	 * @param payload Handle of the message in the payload arena if the message itself is null.
+	 */
+	private void showMessage(String message, long[] payload, String address, long sequence, long epoch) {
+		sequence = toHistory(epoch, sequence);
+		if (!accept(sequence)) return;
+		add(address, message, sequence, payload, 0);
+		chatAdapter.notifyDataSetChanged();
+	}
+	
+	/**
+	 * Shows a batch of messages in the chat list with a single update
+	 *
+	 * @param payloads Handles of the messages which are null in the payload arena, or null if there are none.
+	 */
+	private void showMessages(String[] messages, long[] payloads, String[] addresses, long[] sequences, long epoch) {
+		for (int i = 0; i < messages.length; ++i) {
+			final long sequence = toHistory(epoch, sequences != null ? sequences[i] : -1);
+			if (accept(sequence)) add(addresses[i], messages[i], sequence, payloads, i);
+		}
+		chatAdapter.notifyDataSetChanged();
+	}
+
+	/**
+	 * Adds a message to the chat list. Messages from the payload arena are copied into the history undecoded.
+	 */
+	private void add(String address, String message, long sequence, long[] handles, int index) {
+		if (message != null) {
+			chatAdapter.add(address, message, sequence);
+			return;
+		}
+		final byte[] bytes = handles != null ? payloads.read(handles, index) : null;
+		if (bytes != null) chatAdapter.add(address, bytes, sequence);
+		else chatAdapter.add(address, "(message expired)", sequence);
+	}
+	
+	/**
+	 * Maps a sequence number of the service to one of the history. Once the service numbers its messages in a new
+	 * epoch, e.g. since its journal was lost, the numbers of the epoch follow the newest one in the history, so the
+	 * numbers in the history keep growing.
+	 */
+	private long toHistory(long epoch, long sequence) {
+		if (sequence == -1) return -1;
+		if (epoch != this.epoch) {
+			this.epoch = epoch;
+			base = lastSequence + 1;
+			getSharedPreferences(PTPConfiguration.preferences, Context.MODE_PRIVATE).edit().putLong(keyEpoch, epoch).putLong(keyBase, base).commit();
+		}
+		return base + sequence;
+	}
+
+	/**
+	 * Puts the sequence number of the service of the last message shown, and its epoch, into a message to the service.
+	 */
+	private void acknowledge(Bundle bundle) {
+		bundle.putLong(ClientService.SEQUENCE, lastSequence >= base ? lastSequence - base : -1);
+		bundle.putLong(ClientService.EPOCH, epoch);
+	}
+
+	/**
+	 * Returns whether a message with the given sequence number is new. Messages without one (-1) are always new. The
+	 * service delivers its messages in order, and {@link #toHistory(long, long)} keeps the numbers growing when the
+	 * service starts a new epoch, so a number which is not above the last one shown was delivered before. Decided in
+	 * memory, without reading the history on the UI thread.
+	 */
+	private boolean accept(long sequence) {
+		if (sequence == -1) return true;
+		if (sequence <= lastSequence) return false;
+		lastSequence = sequence;
+		return true;
+	}
+	
+	/**
+	 * Grants the service credits for further messages once enough messages are processed, and acknowledges them.
+	 */
+	private void processed(int count, long elapsed) {
+		final int grant = credits.processed(count, elapsed);
+		if (grant == 0 || clientService == null) return;
+		try {
+			Message msg = Message.obtain(null, ClientService.MSG_MESSAGE_STATUS);
+			msg.replyTo = messenger;
+			Bundle bundle = new Bundle();
+			acknowledge(bundle);
+			bundle.putInt(ClientService.CREDITS, grant);
+			msg.setData(bundle);
+			clientService.send(msg);
+		} catch (RemoteException e) {
+			// The service is gone, registering again opens a new window.
+		}
+	}
+
+	/**
+	 * Shows own ptp identifier (passed as argument) in the chat list. Identities other than the default one are named,
+	 * a removed identity has no address.
+	 */
+	public void showOwnIdentifier(String identity, String address) {
+		final boolean named = identity != null && !identity.equals(Identities.defaultName);
+		if (named && address == null) chatAdapter.add(null, "Identity removed: " + identity, -1);
+		else chatAdapter.add(null, "Own Address" + (named ? " (" + identity + ")" : "") + ": " + address, -1);
+		chatAdapter.notifyDataSetChanged();
+	}
+
+	private void bindService() {
+		bindService(new Intent(this, ClientService.class), mConnection, Context.BIND_AUTO_CREATE);
+		bound = true;
+		Toast.makeText(this, "Connecting to service.", Toast.LENGTH_SHORT).show();
+	}
+	
+	private void unbindService() {
+		if (!bound) return;
+
+		// If we have received the service, and hence registered with it, then now is the time to unregister.
+		if (clientService != null) {
+			try {
+				Message msg = Message.obtain(null, ClientService.MSG_UNREGISTER_CLIENT);
+				msg.replyTo = messenger;
+				clientService.send(msg);
+			}
+			catch (RemoteException e) {
+
+			}
+		}
+		// Detach our existing connection.
+		unbindService(mConnection);
+		bound = false;
+		Toast.makeText(this, "Disconnecting from service.", Toast.LENGTH_SHORT).show();
+	}
+}
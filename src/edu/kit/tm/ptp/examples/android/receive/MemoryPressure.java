@@ -0,0 +1,118 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.PrintWriter;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Follows the memory pressure Android reports to {@link ClientService} and tells the service when to give memory
+ * back and when to take it again.
+ *
+ * The trim levels of {@link ComponentCallbacks2#onTrimMemory(int)} map to a few pressure levels. Each level includes
+ * the responses of the milder ones. Android never reports the end of the pressure, so the level goes back to normal
+ * after no pressure was reported for {@link #recoveryDelay}.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class MemoryPressure {
+
+	/** Pressure levels, mildest first, with the bytes the queues of the clients may hold before they are spilled. */
+	public static enum Level {
+		NORMAL(4 * 1024 * 1024),
+		/** Spill the messages queued for the clients to the journal. */
+		LOW(1024 * 1024),
+		/** Also shrink the caches. */
+		MODERATE(256 * 1024),
+		/** Also lower the memory limit of Tor. */
+		CRITICAL(64 * 1024);
+
+		public final long queueBudget;
+
+		private Level(long queueBudget) { this.queueBudget = queueBudget; }
+	}
+
+	public static interface Listener {
+
+		/** Called on the thread of the handler when the level changes. */
+		public void changed(Level level, Level previous);
+	}
+
+	/** Time (in milliseconds) without pressure after which memory is taken again. */
+	public static final long recoveryDelay = 60 * 1000;
+
+	private final Handler handler;
+	private final Listener listener;
+	private volatile Level level = Level.NORMAL;
+	// Pressure reports, and the time (SystemClock.uptimeMillis()) of the last one
+	private long reports = 0;
+	private long lastReport = -1;
+
+	private final Runnable recover = new Runnable() {
+
+		@Override
+		public void run() { change(Level.NORMAL); }
+	};
+
+	/**
+	 * @param handler Handler of the main thread, on which Android reports the trim levels.
+	 */
+	public MemoryPressure(Handler handler, Listener listener) {
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the level for a trim level. While it runs, the process of the service only gets the RUNNING levels,
+	 * the higher ones are reported once it is cached.
+	 */
+	public static Level forTrimLevel(int trim) {
+		if (trim >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || trim == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) return Level.CRITICAL;
+		if (trim >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || trim == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return Level.MODERATE;
+		if (trim == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) return Level.LOW;
+		// TRIM_MEMORY_UI_HIDDEN only says the activity is gone.
+		return Level.NORMAL;
+	}
+
+	/**
+	 * Takes a trim level from {@link ComponentCallbacks2#onTrimMemory(int)}. Raises the level, never lowers it, and
+	 * restarts the wait for recovery.
+	 */
+	public void trim(int trim) { report(forTrimLevel(trim)); }
+
+	/**
+	 * Takes {@link ComponentCallbacks2#onLowMemory()}, which older versions of Android call instead of trimming.
+	 */
+	public void lowMemory() { report(Level.CRITICAL); }
+
+	public Level getLevel() { return level; }
+
+	/**
+	 * Stops waiting for recovery, e.g. when the service stops.
+	 */
+	public void cancel() { handler.removeCallbacks(recover); }
+
+	public void dump(PrintWriter writer, long queuedBytes) {
+		writer.println("Memory: pressure=" + level + " reports=" + reports + " lastReport="
+				+ (lastReport != -1 ? (SystemClock.uptimeMillis() - lastReport) + "ms ago" : "never") + " queued=" + queuedBytes
+				+ "B budget=" + level.queueBudget + "B");
+	}
+
+	private void report(Level reported) {
+		if (reported == Level.NORMAL) return;
+		++reports;
+		lastReport = SystemClock.uptimeMillis();
+		handler.removeCallbacks(recover);
+		handler.postDelayed(recover, recoveryDelay);
+		if (reported.compareTo(level) > 0) change(reported);
+	}
+
+	private void change(Level next) {
+		final Level previous = level;
+		if (next == previous) return;
+		level = next;
+		listener.changed(next, previous);
+	}
+}
@@ -0,0 +1,115 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.kit.tm.ptp.Message;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collects received PTP messages and hands them on in batches.
+ *
+ * A batch is delivered once it holds {@link #getMaxSize()} messages or {@link #getWindow()} milliseconds after its first
+ * message arrived, whichever comes first. A window of 0 disables batching and every message is delivered on its own.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class MessageBatcher {
+
+	public static final long defaultWindow = 0;
+	public static final int defaultMaxSize = 64;
+
+	/** Receiver of the batches. */
+	public static interface Sink {
+
+		/**
+		 * @param identities The names of the identities which received the messages.
+		 * @param opened Time ({@link SystemClock#uptimeMillis()}) at which the first message of the batch arrived.
+		 */
+		public void deliver(List<Message> batch, List<String> identities, long opened);
+	}
+
+	private final Handler handler;
+	private final Sink sink;
+	private final Object deliveryLock;
+	private List<Message> batch = new ArrayList<Message>();
+	private List<String> identities = new ArrayList<String>();
+	private long opened = 0;
+	private volatile long window = defaultWindow;
+	private volatile int maxSize = defaultMaxSize;
+
+	private final Runnable flush = new Runnable() {
+
+		@Override
+		public void run() { flush(); }
+	};
+
+	/**
+	 * @param handler The handler on which batches are delivered when their window expires.
+	 * @param sink The receiver of the batches.
+	 * @param deliveryLock The lock held while a batch is delivered. Callers of {@link #add(Message, String)} must hold it
+	 *                     too.
+	 */
+	public MessageBatcher(Handler handler, Sink sink, Object deliveryLock) {
+		this.handler = handler;
+		this.sink = sink;
+		this.deliveryLock = deliveryLock;
+	}
+
+	/**
+	 * Sets the batching window (in milliseconds) and the maximum number of messages per batch.
+	 */
+	public void configure(long window, int maxSize) {
+		this.window = Math.max(0, window);
+		this.maxSize = Math.max(1, maxSize);
+		flush();
+	}
+
+	public long getWindow() { return window; }
+
+	public int getMaxSize() { return maxSize; }
+
+	public boolean isBatching() { return window > 0; }
+
+	/**
+	 * Adds a message to the current batch. Delivers the batch right away if it is full.
+	 */
+	public void add(Message message, String identity) {
+		boolean full;
+		synchronized (this) {
+			batch.add(message);
+			identities.add(identity);
+			full = batch.size() >= maxSize;
+			if (batch.size() == 1) {
+				opened = SystemClock.uptimeMillis();
+				if (!full) handler.postDelayed(flush, window);
+			}
+		}
+		if (full) flush();
+	}
+
+	/**
+	 * Delivers the current batch, if any.
+	 */
+	public void flush() {
+		// Batches are swapped and delivered under one lock, so they reach the sink in order.
+		synchronized (deliveryLock) {
+			List<Message> current;
+			List<String> currentIdentities;
+			long currentOpened;
+			synchronized (this) {
+				handler.removeCallbacks(flush);
+				if (batch.isEmpty()) return;
+				current = batch;
+				currentIdentities = identities;
+				currentOpened = opened;
+				batch = new ArrayList<Message>(maxSize);
+				identities = new ArrayList<String>(maxSize);
+			}
+			sink.deliver(current, currentIdentities, currentOpened);
+		}
+	}
+}
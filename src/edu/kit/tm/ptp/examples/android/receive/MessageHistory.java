@@ -0,0 +1,696 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent history of the chat shown by {@link MainActivity}.
+ *
+ * Records are appended to segment files of about {@link #segmentSize} bytes. Offsets are global: a segment is named
+ * after the offset of its first record and segments follow each other without gaps. Every record carries its length in
+ * front and at the end, so the history can be paged forwards and backwards from any record, and opening it only needs
+ * to look at the end of the newest segment.
+ *
+ * Appends are buffered and written in batches on a background thread, which also rolls segments over, drops the
+ * oldest ones beyond {@link #maxSegments} and builds the indexes when the history is opened. A per-sender index holds
+ * the offsets of each sender's records, so filtering by sender reads only matching records. A sparse index holds the
+ * offset of every {@link #indexInterval}th sequence number. Sealed segments keep their indexes in a sidecar file.
+ *
+ * Sequence numbers of appended rows must grow, so the sparse index can be searched. Rows of older versions with
+ * numbers which went back, e.g. after the journal of the service was reset, are kept but not indexed.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class MessageHistory {
+
+	/**
+	 * A chat row. The address is null for rows which do not show a received message. The message is null for rows with
+	 * a large message, see {@link MessageHistory#getMessage(Row)}. The sequence number is -1 for rows without one.
+	 */
+	public static class Row {
+
+		public final long offset;
+		public final int size;
+		public final long sequence;
+		public final String address;
+		public final String message;
+
+		public Row(long offset, int size, long sequence, String address, String message) {
+			this.offset = offset;
+			this.size = size;
+			this.sequence = sequence;
+			this.address = address;
+			this.message = message;
+		}
+
+		/** Offset of the record following this one. */
+		public long end() { return offset + size; }
+	}
+
+	public static final String historyDirectory = "history";
+	public static final long segmentSize = 1024 * 1024;
+	public static final int maxSegments = 32;
+	/** Messages with more bytes than this are not kept in the rows. */
+	public static final int lazyThreshold = 4 * 1024;
+	/** Every this many records with a sequence number get an entry in the sparse index. */
+	public static final int indexInterval = 64;
+
+	private static final String segmentSuffix = ".log";
+	private static final String indexSuffix = ".idx";
+	/** Pending appends are written after this many milliseconds, or right away once they reach flushThreshold bytes. */
+	private static final long flushDelay = 200;
+	private static final int flushThreshold = 64 * 1024;
+
+	// Record layout: body length, sequence number, address length (-1 for no address), address, message, body length
+	private static final int HEADER = 4 + 8 + 4;
+
+	/** A growing, sorted list of longs. */
+	private static class LongList {
+
+		private long[] values = new long[16];
+		private int size = 0;
+
+		public void add(long value) {
+			if (size == values.length) {
+				long[] larger = new long[size * 2];
+				System.arraycopy(values, 0, larger, 0, size);
+				values = larger;
+			}
+			values[size++] = value;
+		}
+
+		public void addAll(LongList other) {
+			for (int i = 0; i < other.size; ++i) add(other.values[i]);
+		}
+
+		public long get(int index) { return values[index]; }
+
+		public int size() { return size; }
+
+		/** Index of the first value at least as large as the given one, size() if there is none. */
+		public int ceiling(long value) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (values[middle] < value) low = middle + 1;
+				else high = middle;
+			}
+			return low;
+		}
+
+		/** Removes the values below the given one and returns the number removed. */
+		public int removeBelow(long value) {
+			final int count = ceiling(value);
+			removeFirst(count);
+			return count;
+		}
+
+		public void removeFirst(int count) {
+			System.arraycopy(values, count, values, 0, size - count);
+			size -= count;
+		}
+	}
+
+	/** The indexes of a range of records. */
+	private static class Index {
+
+		public final Map<String, LongList> senders = new HashMap<String, LongList>();
+		public final LongList sequences = new LongList();
+		public final LongList offsets = new LongList();
+		// Records with a sequence number since the last sparse entry, and the highest sequence number indexed
+		public int unindexed = 0;
+		public long highest = -1;
+
+		public void add(String address, long sequence, long offset) {
+			if (address != null) {
+				LongList list = senders.get(address);
+				if (list == null) senders.put(address, list = new LongList());
+				list.add(offset);
+			}
+			// Numbers which went back would break the order of the sparse index.
+			if (sequence <= highest) return;
+			highest = sequence;
+			if (unindexed == 0) {
+				sequences.add(sequence);
+				offsets.add(offset);
+			}
+			unindexed = (unindexed + 1) % indexInterval;
+		}
+
+		/** Appends the entries of a later range. */
+		public void addAll(Index later) {
+			for (Map.Entry<String, LongList> entry : later.senders.entrySet()) {
+				LongList list = senders.get(entry.getKey());
+				if (list == null) senders.put(entry.getKey(), list = new LongList());
+				list.addAll(entry.getValue());
+			}
+			for (int i = 0; i < later.sequences.size(); ++i) {
+				if (later.sequences.get(i) <= highest) continue;
+				highest = later.sequences.get(i);
+				sequences.add(highest);
+				offsets.add(later.offsets.get(i));
+			}
+			highest = Math.max(highest, later.highest);
+		}
+	}
+
+	private static class Segment {
+
+		public final long base;
+		public final File file;
+		public final RandomAccessFile handle;
+		public final FileChannel channel;
+		public long length;
+
+		public Segment(File directory, long base) throws IOException {
+			this.base = base;
+			this.file = new File(directory, name(base) + segmentSuffix);
+			this.handle = new RandomAccessFile(file, "rw");
+			this.channel = handle.getChannel();
+			this.length = handle.length();
+		}
+
+		public File indexFile() { return new File(file.getParentFile(), name(base) + indexSuffix); }
+
+		public void close() {
+			try { handle.close(); } catch (IOException e) { }
+		}
+
+		private static String name(long base) {
+			final String digits = Long.toString(base);
+			StringBuilder name = new StringBuilder(19);
+			for (int i = digits.length(); i < 19; ++i) name.append('0');
+			return name.append(digits).toString();
+		}
+	}
+
+	private final File directory;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+	private final CountDownLatch indexed = new CountDownLatch(1);
+	private Segment active;
+	// Offset behind the last appended record and behind the last record on disk
+	private long end;
+	private long flushed;
+	// Records being written, from flushed on, followed by the pending ones
+	private byte[] writing = new byte[0];
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private boolean flushScheduled = false;
+	private Index index = new Index();
+	private long lastSequence = -1;
+
+	private final Runnable flush = new Runnable() {
+
+		@Override
+		public void run() { flush(); }
+	};
+
+	/**
+	 * Opens the history in the given directory. Only the end of the newest segment is read right away, the indexes are
+	 * built in the background.
+	 */
+	public MessageHistory(File directory) throws IOException {
+		this.directory = directory;
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				final String name = file.getName();
+				if (!name.endsWith(segmentSuffix)) continue;
+				try {
+					final long base = Long.parseLong(name.substring(0, name.length() - segmentSuffix.length()));
+					segments.put(base, new Segment(directory, base));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		if (segments.isEmpty()) segments.put(0L, new Segment(directory, 0));
+		active = segments.lastEntry().getValue();
+		recover(active);
+		end = flushed = active.base + active.length;
+
+		// Find the last sequence number among the newest rows.
+		long offset = end;
+		while (lastSequence == -1 && offset > start() && end - offset < segmentSize) {
+			List<Row> rows = readBefore(offset, 1);
+			if (rows.isEmpty()) break;
+			lastSequence = rows.get(0).sequence;
+			offset = rows.get(0).offset;
+		}
+
+		writer.execute(new Runnable() {
+
+			@Override
+			public void run() { buildIndex(); }
+		});
+	}
+
+	/**
+	 * Appends a row and returns it. The record is written in the background.
+	 *
+	 * @param sequence -1, or a number above those of the rows appended before, see {@link #getLastSequence()}.
+	 */
+	public Row append(String address, String message, long sequence) {
+		try {
+			return append(address, message.getBytes("UTF-8"), message, sequence);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Appends a row with a UTF-8 encoded message and returns it. The message is only decoded if it is small.
+	 */
+	public Row append(String address, byte[] message, long sequence) { return append(address, message, null, sequence); }
+
+	private synchronized Row append(String address, byte[] messageBytes, String message, long sequence) {
+		if (sequence != -1 && sequence <= lastSequence) throw new IllegalArgumentException("Sequence number " + sequence + " does not follow " + lastSequence);
+		final byte[] addressBytes = encode(address);
+		final int body = HEADER - 4 + addressBytes.length + messageBytes.length;
+		final long offset = end;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(body).putLong(sequence).putInt(address != null ? addressBytes.length : -1);
+		pending.write(header.array(), 0, HEADER);
+		pending.write(addressBytes, 0, addressBytes.length);
+		pending.write(messageBytes, 0, messageBytes.length);
+		header.clear();
+		header.putInt(body);
+		pending.write(header.array(), 0, 4);
+		end += body + 8;
+
+		index.add(address, sequence, offset);
+		if (sequence != -1) lastSequence = sequence;
+
+		if (pending.size() >= flushThreshold) {
+			writer.execute(flush);
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			writer.schedule(flush, flushDelay, TimeUnit.MILLISECONDS);
+		}
+		return new Row(offset, body + 8, sequence, address, messageBytes.length > lazyThreshold ? null
+				: message != null ? message : decode(messageBytes, 0, messageBytes.length));
+	}
+
+	/**
+	 * Reads up to count rows ending before the given offset, oldest first.
+	 */
+	public synchronized List<Row> readBefore(long offset, int count) throws IOException {
+		List<Row> rows = new ArrayList<Row>(count);
+		final long start = start();
+		while (offset > start && rows.size() < count) {
+			offset -= ByteBuffer.wrap(read(offset - 4, 4)).getInt() + 8;
+			rows.add(read(offset));
+		}
+		reverse(rows);
+		return rows;
+	}
+
+	/**
+	 * Reads up to count rows starting at the given offset, oldest first.
+	 */
+	public synchronized List<Row> readFrom(long offset, int count) throws IOException {
+		List<Row> rows = new ArrayList<Row>(count);
+		offset = Math.max(offset, start());
+		while (offset < end && rows.size() < count) {
+			Row row = read(offset);
+			rows.add(row);
+			offset = row.end();
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads up to count rows of a sender ending before the given offset, oldest first.
+	 */
+	public List<Row> readBefore(String address, long offset, int count) throws IOException {
+		awaitIndex();
+		synchronized (this) {
+			List<Row> rows = new ArrayList<Row>(count);
+			LongList offsets = index.senders.get(address);
+			if (offsets == null) return rows;
+			for (int i = offsets.ceiling(offset) - 1; i >= 0 && rows.size() < count; --i) rows.add(read(offsets.get(i)));
+			reverse(rows);
+			return rows;
+		}
+	}
+
+	/**
+	 * Reads up to count rows of a sender starting at the given offset, oldest first.
+	 */
+	public List<Row> readFrom(String address, long offset, int count) throws IOException {
+		awaitIndex();
+		synchronized (this) {
+			List<Row> rows = new ArrayList<Row>(count);
+			LongList offsets = index.senders.get(address);
+			if (offsets == null) return rows;
+			for (int i = offsets.ceiling(offset); i < offsets.size() && rows.size() < count; ++i) rows.add(read(offsets.get(i)));
+			return rows;
+		}
+	}
+
+	/**
+	 * Returns the offset of the row with the given sequence number, or -1 if the history does not hold it. Relies on
+	 * the sequence numbers growing, rows with a number which went back are not found.
+	 */
+	public long find(long sequence) throws IOException {
+		awaitIndex();
+		synchronized (this) {
+			final int entry = index.sequences.ceiling(sequence + 1) - 1;
+			long offset = entry >= 0 ? Math.max(start(), index.offsets.get(entry)) : start();
+			// The wanted row is at most one index interval behind the entry, give rows without sequence numbers some slack.
+			for (int i = 0; i < 2 * indexInterval && offset < end; ++i) {
+				ByteBuffer header = ByteBuffer.wrap(read(offset, HEADER));
+				final int body = header.getInt();
+				final long current = header.getLong();
+				if (current == sequence) return offset;
+				if (current > sequence) return -1;
+				offset += body + 8;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the message of a row, reading it from the history if the row does not hold it.
+	 */
+	public synchronized String getMessage(Row row) throws IOException {
+		if (row.message != null) return row.message;
+		ByteBuffer header = ByteBuffer.wrap(read(row.offset, HEADER));
+		final int body = header.getInt();
+		header.getLong();
+		final int addressLength = Math.max(0, header.getInt());
+		final int messageLength = body - (HEADER - 4) - addressLength;
+		return decode(read(row.offset + HEADER + addressLength, messageLength), 0, messageLength);
+	}
+
+	/** The sequence number of the newest row which has one, or -1. */
+	public synchronized long getLastSequence() { return lastSequence; }
+
+	/** Offset of the oldest row. */
+	public synchronized long start() { return segments.firstKey(); }
+
+	/** Offset behind the newest row. */
+	public synchronized long end() { return end; }
+
+	/**
+	 * Writes out pending rows and closes the history.
+	 */
+	public void close() {
+		writer.execute(flush);
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
+		synchronized (this) {
+			for (Segment segment : segments.values()) segment.close();
+		}
+	}
+
+	/**
+	 * Writes the pending rows to the newest segment. Runs on the writer thread.
+	 */
+	private void flush() {
+		Segment target;
+		byte[] batch;
+		long position;
+		synchronized (this) {
+			flushScheduled = false;
+			if (pending.size() == 0) return;
+			batch = pending.toByteArray();
+			pending.reset();
+			writing = batch;
+			target = active;
+			position = flushed - active.base;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while (buffer.hasRemaining()) position += target.channel.write(buffer, position);
+		} catch (IOException e) {
+			// Keep the rows in memory and try again with the next batch.
+			synchronized (this) {
+				final byte[] later = pending.toByteArray();
+				pending.reset();
+				pending.write(batch, 0, batch.length);
+				pending.write(later, 0, later.length);
+				writing = new byte[0];
+			}
+			return;
+		}
+		synchronized (this) {
+			flushed += batch.length;
+			target.length += batch.length;
+			writing = new byte[0];
+			if (target.length >= segmentSize) roll();
+		}
+	}
+
+	/**
+	 * Seals the newest segment, starts a new one and drops the oldest segments beyond the limit. Called on the writer
+	 * thread with the lock held.
+	 */
+	private void roll() {
+		try {
+			writeIndex(active);
+			active = new Segment(directory, flushed);
+			segments.put(active.base, active);
+		} catch (IOException e) {
+			// Keep appending to the current segment.
+			return;
+		}
+		while (segments.size() > maxSegments) {
+			Segment oldest = segments.remove(segments.firstKey());
+			oldest.close();
+			oldest.file.delete();
+			oldest.indexFile().delete();
+		}
+		final long start = start();
+		for (Iterator<LongList> senders = index.senders.values().iterator(); senders.hasNext();) {
+			LongList offsets = senders.next();
+			offsets.removeBelow(start);
+			if (offsets.size() == 0) senders.remove();
+		}
+		// The sparse index only takes growing sequence numbers, so it is sorted by offset and by sequence number. Drop
+		// the same entries from both lists.
+		index.sequences.removeFirst(index.offsets.removeBelow(start));
+	}
+
+	/**
+	 * Builds the indexes of the rows which were on disk when the history was opened. Runs on the writer thread.
+	 */
+	private void buildIndex() {
+		List<Segment> existing;
+		synchronized (this) {
+			existing = new ArrayList<Segment>(segments.values());
+		}
+		Index built = new Index();
+		for (Segment segment : existing) {
+			if (segment != existing.get(existing.size() - 1) && readIndex(segment, built)) continue;
+			try {
+				scan(segment, built);
+			} catch (IOException e) {
+			}
+		}
+		synchronized (this) {
+			// Rows appended since opening come after the ones on disk.
+			built.unindexed = index.unindexed;
+			built.addAll(index);
+			index = built;
+		}
+		indexed.countDown();
+	}
+
+	private void awaitIndex() {
+		try {
+			indexed.await();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Adds the records of a segment on disk to an index.
+	 */
+	private static void scan(Segment segment, Index index) throws IOException {
+		if (segment.length == 0) return;
+		MappedByteBuffer map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+		int position = 0;
+		while (position + HEADER + 4 <= segment.length) {
+			final int body = map.getInt(position);
+			final long sequence = map.getLong(position + 4);
+			final int addressLength = map.getInt(position + 12);
+			String address = null;
+			if (addressLength > 0) {
+				byte[] bytes = new byte[addressLength];
+				map.position(position + HEADER);
+				map.get(bytes);
+				address = decode(bytes, 0, addressLength);
+			}
+			index.add(address, sequence, segment.base + position);
+			position += body + 8;
+		}
+	}
+
+	/**
+	 * Cuts off a partially written record at the end of a segment, e.g. after the process was killed while writing.
+	 */
+	private static void recover(Segment segment) throws IOException {
+		if (segment.length == 0) return;
+		ByteBuffer word = ByteBuffer.allocate(4);
+		segment.channel.read(word, segment.length - 4);
+		final long start = segment.length - 8 - word.getInt(0);
+		if (start >= 0) {
+			word.clear();
+			segment.channel.read(word, start);
+			if (word.getInt(0) == segment.length - 8 - start) return;
+		}
+
+		// Walk the records from the front to find the last complete one.
+		MappedByteBuffer map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+		long valid = 0;
+		while (valid + HEADER + 4 <= segment.length) {
+			final int body = map.getInt((int) valid);
+			if (body < HEADER - 4 || valid + body + 8 > segment.length || map.getInt((int) (valid + 4 + body)) != body) break;
+			valid += body + 8;
+		}
+		segment.channel.truncate(valid);
+		segment.length = valid;
+	}
+
+	/**
+	 * Writes the indexes of a sealed segment to its sidecar file.
+	 */
+	private void writeIndex(Segment segment) throws IOException {
+		final long limit = segment.base + segment.length;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment.indexFile())));
+		try {
+			final int first = index.offsets.ceiling(segment.base);
+			final int last = index.offsets.ceiling(limit);
+			out.writeInt(last - first);
+			for (int i = first; i < last; ++i) {
+				out.writeLong(index.sequences.get(i));
+				out.writeLong(index.offsets.get(i));
+			}
+			for (Map.Entry<String, LongList> entry : index.senders.entrySet()) {
+				final int from = entry.getValue().ceiling(segment.base);
+				final int to = entry.getValue().ceiling(limit);
+				if (from == to) continue;
+				out.writeBoolean(true);
+				out.writeUTF(entry.getKey());
+				out.writeInt(to - from);
+				for (int i = from; i < to; ++i) out.writeLong(entry.getValue().get(i));
+			}
+			out.writeBoolean(false);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Adds the indexes of a sealed segment from its sidecar file. Returns false if there is none.
+	 */
+	private static boolean readIndex(Segment segment, Index index) {
+		if (!segment.indexFile().exists()) return false;
+		Index read = new Index();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.indexFile())));
+			for (int i = in.readInt(); i > 0; --i) {
+				read.sequences.add(in.readLong());
+				read.offsets.add(in.readLong());
+			}
+			while (in.readBoolean()) {
+				LongList offsets = new LongList();
+				read.senders.put(in.readUTF(), offsets);
+				for (int i = in.readInt(); i > 0; --i) offsets.add(in.readLong());
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try { if (in != null) in.close(); } catch (IOException e) { }
+		}
+		index.addAll(read);
+		return true;
+	}
+
+	private Row read(long offset) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(read(offset, HEADER));
+		final int body = header.getInt();
+		final long sequence = header.getLong();
+		final int addressLength = header.getInt();
+		final int addressBytes = Math.max(0, addressLength);
+		final int messageLength = body - (HEADER - 4) - addressBytes;
+		// Large messages are left on disk until the row is displayed.
+		final boolean lazy = messageLength > lazyThreshold;
+		byte[] bytes = read(offset + HEADER, lazy ? addressBytes : addressBytes + messageLength);
+		return new Row(offset, body + 8, sequence,
+				addressLength >= 0 ? decode(bytes, 0, addressLength) : null,
+				lazy ? null : decode(bytes, addressBytes, messageLength));
+	}
+
+	/**
+	 * Reads bytes at a global offset, from the segments or from the rows not written yet. Called with the lock held.
+	 */
+	private byte[] read(long offset, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		if (offset >= flushed) {
+			final long inWriting = offset - flushed;
+			if (inWriting < writing.length) System.arraycopy(writing, (int) inWriting, bytes, 0, length);
+			else System.arraycopy(pending.toByteArray(), (int) (inWriting - writing.length), bytes, 0, length);
+			return bytes;
+		}
+		Segment segment = segments.floorEntry(offset).getValue();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long position = offset - segment.base;
+		while (buffer.hasRemaining()) {
+			final int read = segment.channel.read(buffer, position);
+			if (read < 0) throw new IOException("Unexpected end of " + segment.file.getName());
+			position += read;
+		}
+		return bytes;
+	}
+
+	private static void reverse(List<Row> rows) {
+		for (int i = 0, j = rows.size() - 1; i < j; ++i, --j) rows.set(i, rows.set(j, rows.get(i)));
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text != null ? text.getBytes("UTF-8") : new byte[0];
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	private static String decode(byte[] bytes, int offset, int length) {
+		try {
+			return new String(bytes, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+}
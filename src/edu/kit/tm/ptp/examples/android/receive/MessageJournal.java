@@ -0,0 +1,385 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Bounded, memory-mapped journal of messages which could not be delivered to a client yet.
+ *
+ * Records are appended to a circular data area behind a small header. The header holds the read cursor, the write
+ * position and the next sequence number, so reopening the journal after the process was killed needs no scan. Since
+ * the file is mapped, appended records survive the process being killed by the OS.
+ *
+ * Sequence numbers never go back, also not when the journal is reset. Only if the header is lost and the last number
+ * is unknown, numbering starts over in a new epoch (see {@link #getEpoch()}), so acknowledgements of clients which
+ * refer to the old numbers can be told apart.
+ *
+ * The journal is used like a queue: {@link #append(String, String, String)}, {@link #peek()} and {@link #remove()}.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class MessageJournal {
+
+	/** What to do when an appended record does not fit. */
+	public static enum Overflow {
+		/** Drop the oldest records until the new one fits. */
+		DROP_OLDEST,
+		/** Reject the new record. */
+		REJECT
+	}
+
+	/** A record read from the journal. */
+	public static class Entry {
+
+		public final long sequence;
+		/** Name of the identity which received the message. */
+		public final String identity;
+		public final String address;
+		public final String content;
+
+		public Entry(long sequence, String identity, String address, String content) {
+			this.sequence = sequence;
+			this.identity = identity;
+			this.address = address;
+			this.content = content;
+		}
+	}
+
+	public static final String journalFile = "received.journal";
+	/** Identity of the records without an identity tag, as written before there were several identities. */
+	public static final String untaggedIdentity = "default";
+	public static final int defaultCapacity = 4 * 1024 * 1024;
+
+	private static final int magic = 0x50545031;
+	private static final int version = 1;
+
+	// Header layout
+	private static final int MAGIC = 0;
+	private static final int VERSION = 4;
+	private static final int CAPACITY = 8;
+	private static final int READ = 16;
+	private static final int WRITE = 24;
+	private static final int SEQUENCE = 32;
+	private static final int COUNT = 40;
+	private static final int EPOCH = 48;
+	private static final int HEADER = 64;
+
+	// Record layout: length of the rest, sequence number, address length, address and content bytes.
+	// The address is preceded by the identity and a newline unless the default identity received the message, so
+	// records written before there were several identities read the same.
+	private static final int RECORD_HEADER = 4 + 8 + 4;
+
+	private final Overflow overflow;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final long capacity;
+	private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final byte[] word = new byte[8];
+	private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+	private long read;
+	private long write;
+	private long sequence;
+	private long count;
+	private long epoch;
+	private long dropped = 0;
+	private long rejected = 0;
+
+	/**
+	 * Opens the journal in the given directory, creating it if needed.
+	 *
+	 * @param capacity Size of the data area in bytes. Only applies to new or empty journals.
+	 */
+	public MessageJournal(File directory, int capacity, Overflow overflow) throws IOException {
+		this.overflow = overflow;
+		file = new RandomAccessFile(new File(directory, journalFile), "rw");
+
+		long existing = -1;
+		// Next sequence number and epoch of an existing journal, carried over if it is reset
+		long carried = -1;
+		long previousEpoch = -1;
+		if (file.length() >= HEADER) {
+			file.seek(MAGIC);
+			final boolean valid = file.readInt() == magic && file.readInt() == version;
+			existing = valid ? file.readLong() : -1;
+			if (valid) {
+				file.seek(SEQUENCE);
+				carried = file.readLong();
+				file.seek(EPOCH);
+				previousEpoch = file.readLong();
+			}
+			if (existing <= 0 || file.length() != HEADER + existing) existing = -1;
+		}
+
+		final boolean keep = existing != -1 && (existing == capacity || !emptyOnDisk());
+		this.capacity = keep ? existing : capacity;
+		if (!keep) file.setLength(HEADER + this.capacity);
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + this.capacity);
+
+		if (keep) {
+			read = map.getLong(READ);
+			write = map.getLong(WRITE);
+			sequence = map.getLong(SEQUENCE);
+			count = map.getLong(COUNT);
+			epoch = map.getLong(EPOCH);
+			if (read < 0 || write < read || write - read > this.capacity || count < 0) reset(carried, previousEpoch);
+		} else {
+			reset(carried, previousEpoch);
+		}
+	}
+
+	/**
+	 * Appends a message. Returns false if it was rejected because it does not fit.
+	 *
+	 * @param identity Name of the identity which received the message.
+	 */
+	public synchronized boolean append(String identity, String address, String content) {
+		return append(identity, address, content, sequence);
+	}
+
+	/**
+	 * Appends a message which already has a sequence number from {@link #nextSequence()}, e.g. one taken back from the
+	 * queue of a client. The number must be above those of the journaled messages. Returns false if the message was
+	 * rejected because it does not fit.
+	 *
+	 * @param identity Name of the identity which received the message.
+	 */
+	public synchronized boolean append(String identity, String address, String content, long number) {
+		scratch.clear();
+		if (!untaggedIdentity.equals(identity)) encode(identity + '\n');
+		encode(address);
+		final int addressLength = scratch.position();
+		encode(content);
+		final int payload = scratch.position();
+
+		final long size = RECORD_HEADER + payload;
+		if (size > capacity) {
+			++rejected;
+			return false;
+		}
+		while (capacity - (write - read) < size) {
+			if (overflow == Overflow.REJECT) {
+				++rejected;
+				return false;
+			}
+			drop();
+		}
+
+		writeInt(write, (int) size - 4);
+		writeLong(write + 4, number);
+		writeInt(write + 12, addressLength);
+		put(write + RECORD_HEADER, scratch.array(), 0, payload);
+
+		// Only publish the record in the header once it is written completely.
+		write += size;
+		sequence = Math.max(sequence, number + 1);
+		++count;
+		map.putLong(SEQUENCE, sequence);
+		map.putLong(COUNT, count);
+		map.putLong(WRITE, write);
+		return true;
+	}
+
+	/**
+	 * Returns the oldest record without removing it, or null if the journal is empty.
+	 */
+	public synchronized Entry peek() {
+		if (read == write) return null;
+
+		final int length = readInt(read);
+		final long sequence = readLong(read + 4);
+		final int addressLength = readInt(read + 12);
+		final byte[] bytes = new byte[length - 12];
+		get(read + RECORD_HEADER, bytes, 0, bytes.length);
+		try {
+			final String tagged = new String(bytes, 0, addressLength, "UTF-8");
+			final int separator = tagged.indexOf('\n');
+			return new Entry(sequence,
+					separator != -1 ? tagged.substring(0, separator) : untaggedIdentity,
+					separator != -1 ? tagged.substring(separator + 1) : tagged,
+					new String(bytes, addressLength, bytes.length - addressLength, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Removes the oldest record and persists the new read cursor.
+	 */
+	public synchronized void remove() {
+		if (read == write) return;
+		read += 4 + readInt(read);
+		--count;
+		map.putLong(COUNT, count);
+		map.putLong(READ, read);
+	}
+
+	/**
+	 * Removes the oldest record if it has the given sequence number. Returns false if it has not, for example
+	 * because it was dropped to make room since it was read.
+	 */
+	public synchronized boolean remove(long sequence) {
+		if (read == write || readLong(read + 4) != sequence) return false;
+		remove();
+		return true;
+	}
+
+	/**
+	 * Takes a sequence number for a message which is delivered without being journaled, so all messages share one
+	 * ordered sequence.
+	 */
+	public synchronized long nextSequence() {
+		final long next = sequence++;
+		map.putLong(SEQUENCE, sequence);
+		return next;
+	}
+
+	/**
+	 * Returns the epoch of the sequence numbers. Sequence numbers of different epochs cannot be compared.
+	 */
+	public synchronized long getEpoch() { return epoch; }
+
+	public synchronized boolean isEmpty() { return read == write; }
+
+	/** Number of records in the journal. */
+	public synchronized long size() { return count; }
+
+	/** Number of bytes used by records. */
+	public synchronized long bytes() { return write - read; }
+
+	public long capacity() { return capacity; }
+
+	/** Number of records dropped to make room since the journal was opened. */
+	public synchronized long dropped() { return dropped; }
+
+	/** Number of records rejected since the journal was opened. */
+	public synchronized long rejected() { return rejected; }
+
+	/**
+	 * Writes outstanding changes to storage and closes the journal.
+	 */
+	public synchronized void close() {
+		map.force();
+		try { file.close(); } catch (IOException e) { }
+	}
+
+	private boolean emptyOnDisk() throws IOException {
+		file.seek(READ);
+		return file.readLong() == file.readLong();
+	}
+
+	/**
+	 * Empties the journal. Numbering goes on from the given sequence number in the given epoch, or starts over in a new
+	 * epoch if they are unknown (-1) or invalid.
+	 */
+	private void reset(long next, long previousEpoch) {
+		read = write = count = 0;
+		if (next >= 0 && previousEpoch >= 0) {
+			sequence = next;
+			epoch = previousEpoch;
+		} else {
+			sequence = 0;
+			epoch = Math.max(previousEpoch + 1, System.currentTimeMillis());
+		}
+		map.putInt(MAGIC, magic);
+		map.putInt(VERSION, version);
+		map.putLong(CAPACITY, capacity);
+		map.putLong(READ, read);
+		map.putLong(WRITE, write);
+		map.putLong(SEQUENCE, sequence);
+		map.putLong(COUNT, count);
+		map.putLong(EPOCH, epoch);
+	}
+
+	private void drop() {
+		read += 4 + readInt(read);
+		--count;
+		++dropped;
+		map.putLong(COUNT, count);
+		map.putLong(READ, read);
+	}
+
+	/**
+	 * Encodes a string as UTF-8 into the scratch buffer, growing it if needed.
+	 */
+	private void encode(String text) {
+		CharBuffer chars = CharBuffer.wrap(text);
+		encoder.reset();
+		while (encoder.encode(chars, scratch, true).isOverflow()) grow();
+		CoderResult result;
+		while ((result = encoder.flush(scratch)).isOverflow()) grow();
+		if (result.isError()) throw new IllegalStateException(result.toString());
+	}
+
+	private void grow() {
+		ByteBuffer larger = ByteBuffer.allocate(scratch.capacity() * 2);
+		scratch.flip();
+		larger.put(scratch);
+		scratch = larger;
+	}
+
+	private void writeInt(long position, int value) {
+		for (int i = 0; i < 4; ++i) word[i] = (byte) (value >>> (24 - 8 * i));
+		put(position, word, 0, 4);
+	}
+
+	private void writeLong(long position, long value) {
+		for (int i = 0; i < 8; ++i) word[i] = (byte) (value >>> (56 - 8 * i));
+		put(position, word, 0, 8);
+	}
+
+	private int readInt(long position) {
+		get(position, word, 0, 4);
+		int value = 0;
+		for (int i = 0; i < 4; ++i) value = (value << 8) | (word[i] & 0xff);
+		return value;
+	}
+
+	private long readLong(long position) {
+		get(position, word, 0, 8);
+		long value = 0;
+		for (int i = 0; i < 8; ++i) value = (value << 8) | (word[i] & 0xff);
+		return value;
+	}
+
+	/**
+	 * Copies bytes to a logical position of the circular data area, wrapping around at its end.
+	 */
+	private void put(long position, byte[] source, int offset, int length) {
+		final int start = (int) (position % capacity);
+		final int first = (int) Math.min(length, capacity - start);
+		map.position(HEADER + start);
+		map.put(source, offset, first);
+		if (first < length) {
+			map.position(HEADER);
+			map.put(source, offset + first, length - first);
+		}
+	}
+
+	/**
+	 * Copies bytes from a logical position of the circular data area, wrapping around at its end.
+	 */
+	private void get(long position, byte[] destination, int offset, int length) {
+		final int start = (int) (position % capacity);
+		final int first = (int) Math.min(length, capacity - start);
+		map.position(HEADER + start);
+		map.get(destination, offset, first);
+		if (first < length) {
+			map.position(HEADER);
+			map.get(destination, offset + first, length - first);
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import edu.kit.tm.ptp.Identifier;
+import edu.kit.tm.ptp.Message;
+import edu.kit.tm.ptp.PTP;
+import edu.kit.tm.ptp.SendListener;
+
+import android.os.Messenger;
+import android.os.SystemClock;
+
+/**
+ * Sends the messages of clients of {@link ClientService} through PTP.
+ *
+ * Messages are queued per destination. A destination keeps its {@link Identifier}, so every message to a peer goes
+ * to PTP with the same identifier and PTP reuses its connection to the hidden service. A destination's queue is drained
+ * on a background executor. Messages queued back-to-back go out in the same run, with up to {@link #pipelineDepth}
+ * sends in flight, rather than waiting for each other's outcome. Messages are sent by the PTP instance of the identity
+ * (see {@link Identities}) the client chose, and queued until that instance is up.
+ *
+ * The outcome of every message is passed to a {@link Listener}.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class Outbox {
+
+	/** A message of a client. */
+	public static class Outgoing {
+
+		/** ID chosen by the client, reported back with the outcome. */
+		public final long id;
+		/** Name of the identity to send from. */
+		public final String identity;
+		public final String destination;
+		public final String content;
+		/** The client to report the outcome to, may be null. */
+		public final Messenger replyTo;
+		/** Time ({@link SystemClock#uptimeMillis()}) the message was queued. */
+		public final long queuedAt;
+
+		public Outgoing(long id, String identity, String destination, String content, Messenger replyTo) {
+			this.id = id;
+			this.identity = identity;
+			this.destination = destination;
+			this.content = content;
+			this.replyTo = replyTo;
+			this.queuedAt = SystemClock.uptimeMillis();
+		}
+	}
+
+	/** Receives the outcome of the messages. Called on the thread on which PTP reports it. */
+	public static interface Listener {
+
+		/**
+		 * @param failure Null if the message was sent, otherwise the name of a {@link SendListener.FailState},
+		 *                {@link Outbox#QUEUE_FULL}, {@link Outbox#CANCELLED}, {@link Outbox#UNKNOWN_IDENTITY} or
+		 *                {@link Outbox#INVALID_MESSAGE}.
+		 */
+		public void completed(Outgoing message, String failure);
+	}
+
+	public static final String QUEUE_FULL = "QUEUE_FULL";
+	public static final String CANCELLED = "CANCELLED";
+	public static final String UNKNOWN_IDENTITY = "UNKNOWN_IDENTITY";
+	/** The message lacks its destination or content. */
+	public static final String INVALID_MESSAGE = "INVALID_MESSAGE";
+
+	/** Sends per destination for which PTP has not reported an outcome yet. */
+	public static final int pipelineDepth = 8;
+	/** Messages queued per destination before further ones are refused. */
+	public static final int maxQueued = 256;
+	/** Time (in milliseconds) PTP gets for a send. */
+	public static final long sendTimeout = 60 * 1000;
+	/** Number of destinations kept once their queues are empty. */
+	public static final int destinationCapacity = 64;
+
+	private static class Destination {
+
+		public final String identity;
+		public final Identifier identifier;
+		public final ArrayDeque<Outgoing> queue = new ArrayDeque<Outgoing>();
+		public int inFlight = 0;
+		public boolean scheduled = false;
+
+		public Destination(String identity, Identifier identifier) {
+			this.identity = identity;
+			this.identifier = identifier;
+		}
+
+		public boolean isIdle() { return queue.isEmpty() && inFlight == 0; }
+	}
+
+	private final Executor executor;
+	private final Listener listener;
+	private final Map<String, Destination> destinations = new LinkedHashMap<String, Destination>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Destination> eldest) {
+			return size() > destinationCapacity && eldest.getValue().isIdle();
+		}
+	};
+	// The PTP instances of the identities which are up
+	private final Map<String, PTP> instances = new HashMap<String, PTP>();
+	// Messages queued over all destinations, and the most seen
+	private int queued = 0;
+	private int highWater = 0;
+	private long sent = 0;
+	private long failed = 0;
+	/** Milliseconds from queuing a message until PTP reported its outcome. */
+	private final ReceiveMetrics.Histogram latency = new ReceiveMetrics.Histogram();
+
+	public Outbox(Executor executor, Listener listener) {
+		this.executor = executor;
+		this.listener = listener;
+	}
+
+	/**
+	 * Queues a message. The outcome is reported to the listener, right away if the message is refused.
+	 */
+	public void send(Outgoing message) {
+		String failure = null;
+		synchronized (this) {
+			// Every identity has its own connections, and so its own destinations.
+			final String key = message.identity + '\n' + message.destination;
+			Destination destination = destinations.get(key);
+			if (destination == null) {
+				final Identifier identifier = new Identifier(message.destination);
+				// Only valid destinations are kept, clients cannot fill the map with garbage.
+				if (identifier.isValid()) {
+					destination = new Destination(message.identity, identifier);
+					destinations.put(key, destination);
+				}
+			}
+			if (destination == null) {
+				failure = SendListener.FailState.INVALID_DESTINATION.name();
+			} else if (destination.queue.size() >= maxQueued) {
+				failure = QUEUE_FULL;
+			} else {
+				destination.queue.add(message);
+				if (++queued > highWater) highWater = queued;
+				schedule(destination);
+			}
+			if (failure != null) ++failed;
+		}
+		if (failure != null) listener.completed(message, failure);
+	}
+
+	/**
+	 * Sets the PTP instance to send with for an identity, once its hidden service is up. Sends the messages queued for
+	 * the identity so far.
+	 */
+	public synchronized void setPTP(String identity, PTP ptp) {
+		instances.put(identity, ptp);
+		for (Destination destination : destinations.values())
+			if (destination.identity.equals(identity)) schedule(destination);
+	}
+
+	/**
+	 * Stops sending for a removed identity and reports its queued messages as cancelled.
+	 */
+	public void remove(String identity) {
+		List<Outgoing> cancelled;
+		synchronized (this) {
+			instances.remove(identity);
+			cancelled = clear(identity);
+		}
+		for (Outgoing message : cancelled) listener.completed(message, CANCELLED);
+	}
+
+	/**
+	 * Stops sending and reports the queued messages as cancelled.
+	 */
+	public void cancel() {
+		List<Outgoing> cancelled;
+		synchronized (this) {
+			instances.clear();
+			cancelled = clear(null);
+		}
+		for (Outgoing message : cancelled) listener.completed(message, CANCELLED);
+	}
+
+	/**
+	 * Forgets the destinations without queued or pending messages, e.g. when memory is low.
+	 */
+	public synchronized void trim() {
+		for (Iterator<Destination> iterator = destinations.values().iterator(); iterator.hasNext();)
+			if (iterator.next().isIdle()) iterator.remove();
+	}
+
+	/** Messages waiting to be handed to PTP. */
+	public synchronized int queued() { return queued; }
+
+	public synchronized int highWater() { return highWater; }
+
+	public synchronized long sent() { return sent; }
+
+	public synchronized long failed() { return failed; }
+
+	public ReceiveMetrics.Histogram latency() { return latency; }
+
+	public synchronized void dump(PrintWriter writer) {
+		int inFlight = 0;
+		for (Destination destination : destinations.values()) inFlight += destination.inFlight;
+		writer.println("Outbox: destinations=" + destinations.size() + " queued=" + queued + " inFlight=" + inFlight
+				+ " highWater=" + highWater + " sent=" + sent + " failed=" + failed);
+		writer.println("  send latency (ms): count=" + latency.count() + " mean=" + latency.mean() + " p50<="
+				+ latency.percentile(50) + " p99<=" + latency.percentile(99) + " max=" + latency.max());
+	}
+
+	/**
+	 * Empties the queues of an identity, or of all identities for null, and drops its idle destinations. Called with
+	 * the lock held.
+	 */
+	private List<Outgoing> clear(String identity) {
+		List<Outgoing> cleared = new ArrayList<Outgoing>();
+		for (Iterator<Destination> iterator = destinations.values().iterator(); iterator.hasNext();) {
+			Destination destination = iterator.next();
+			if (identity != null && !destination.identity.equals(identity)) continue;
+			cleared.addAll(destination.queue);
+			destination.queue.clear();
+			if (destination.inFlight == 0) iterator.remove();
+		}
+		queued -= cleared.size();
+		failed += cleared.size();
+		return cleared;
+	}
+
+	/**
+	 * Starts draining a destination, unless it is already drained or has no room for more sends. Called with the lock
+	 * held.
+	 */
+	private void schedule(Destination destination) {
+		if (!instances.containsKey(destination.identity) || destination.scheduled || destination.queue.isEmpty() || destination.inFlight >= pipelineDepth) return;
+		destination.scheduled = true;
+		executor.execute(new Drain(destination));
+	}
+
+	/** Hands the queued messages of a destination to PTP. */
+	private class Drain implements Runnable {
+
+		private final Destination destination;
+
+		public Drain(Destination destination) { this.destination = destination; }
+
+		@Override
+		public void run() {
+			while (true) {
+				Outgoing message;
+				PTP current;
+				synchronized (Outbox.this) {
+					current = instances.get(destination.identity);
+					if (current == null || destination.queue.isEmpty() || destination.inFlight >= pipelineDepth) {
+						destination.scheduled = false;
+						return;
+					}
+					message = destination.queue.poll();
+					--queued;
+					++destination.inFlight;
+				}
+				try {
+					current.sendMessage(new Message(message.content, destination.identifier), sendTimeout, new Result(destination, message));
+				} catch (RuntimeException e) {
+					complete(destination, message, e.getClass().getSimpleName());
+				}
+			}
+		}
+	}
+
+	/** Receives the outcome of a send from PTP. */
+	private class Result implements SendListener {
+
+		private final Destination destination;
+		private final Outgoing message;
+
+		public Result(Destination destination, Outgoing message) {
+			this.destination = destination;
+			this.message = message;
+		}
+
+		@Override
+		public void sendSuccess(Message sent) { complete(destination, message, null); }
+
+		@Override
+		public void sendFail(Message sent, FailState state) { complete(destination, message, state.name()); }
+	}
+
+	private void complete(Destination destination, Outgoing message, String failure) {
+		synchronized (this) {
+			--destination.inFlight;
+			if (failure == null) ++sent;
+			else ++failed;
+			// A slot in the pipeline is free again.
+			schedule(destination);
+		}
+		latency.record(SystemClock.uptimeMillis() - message.queuedAt);
+		listener.completed(message, failure);
+	}
+}
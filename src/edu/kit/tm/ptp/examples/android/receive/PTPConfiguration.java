@@ -0,0 +1,172 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Generates the PTP configuration (ptp.ini) when PTP starts, instead of installing the fixed values of the raw resource.
+ *
+ * Poll intervals and thread counts come from a profile, scaled to the number of cores and the memory class of the device.
+ * The automatic profile picks one of the named ones from the message rate of earlier sessions. The raw resource serves as
+ * template: its comments and all options which are not generated are kept.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class PTPConfiguration {
+
+	/** Configuration profiles. Take effect on the next start of PTP. */
+	public static enum Profile {
+		AUTOMATIC("automatic"),
+		LOW_LATENCY("low-latency"),
+		HIGH_THROUGHPUT("high-throughput"),
+		BATTERY_SAVER("battery-saver");
+
+		public final String name;
+
+		private Profile(String name) { this.name = name; }
+
+		/**
+		 * Returns the profile with the given name, or null.
+		 */
+		public static Profile forName(String name) {
+			for (Profile profile : values())
+				if (profile.name.equals(name)) return profile;
+			return null;
+		}
+	}
+
+	public static final String preferences = "ptp";
+	private static final String keyProfile = "profile";
+	private static final String keyRate = "messagesPerMinute";
+
+	/** Message rates (per minute) from which the automatic profile aims at throughput respectively saves battery. */
+	public static final float highRate = 60;
+	public static final float lowRate = 1;
+	/** Memory class (in MB) up to which a device counts as low on memory. */
+	public static final int lowMemoryClass = 32;
+	/** Weight of the latest session in the saved message rate. */
+	private static final float rateWeight = 0.3f;
+	/** Sessions shorter than this (in milliseconds) say little about the rate and are not saved. */
+	private static final long minimumSession = 60 * 1000;
+
+	private PTPConfiguration() { }
+
+	/**
+	 * Returns the profile picked by the user, {@link Profile#AUTOMATIC} by default.
+	 */
+	public static Profile getProfile(Context context) {
+		Profile profile = Profile.forName(prefs(context).getString(keyProfile, Profile.AUTOMATIC.name));
+		return profile != null ? profile : Profile.AUTOMATIC;
+	}
+
+	/**
+	 * Picks the profile used on the next start of PTP.
+	 */
+	public static void setProfile(Context context, Profile profile) {
+		prefs(context).edit().putString(keyProfile, profile.name).commit();
+	}
+
+	/**
+	 * Adds the message rate of a finished session to the saved traffic statistics.
+	 */
+	public static void recordSession(Context context, long messages, long millis) {
+		if (millis < minimumSession) return;
+		SharedPreferences prefs = prefs(context);
+		final float rate = messages * 60000f / millis;
+		final float saved = prefs.getFloat(keyRate, -1);
+		prefs.edit().putFloat(keyRate, saved < 0 ? rate : saved + rateWeight * (rate - saved)).commit();
+	}
+
+	/**
+	 * Resolves the automatic profile to a named one.
+	 */
+	public static Profile resolve(Context context, Profile profile) {
+		if (profile != Profile.AUTOMATIC) return profile;
+		final float rate = prefs(context).getFloat(keyRate, -1);
+		if (rate >= highRate) return Profile.HIGH_THROUGHPUT;
+		// Without history, favour latency unless the device is short on memory.
+		if ((rate >= 0 && rate < lowRate) || memoryClass(context) <= lowMemoryClass) return Profile.BATTERY_SAVER;
+		return Profile.LOW_LATENCY;
+	}
+
+	/**
+	 * Returns the generated option values of a named profile for a device with the given cores and memory class.
+	 */
+	public static Map<String, String> options(Profile profile, int cores, int memoryClass) {
+		// Every thread costs a stack, allow one per 32 MB of heap.
+		final int threads = Math.max(1, Math.min(cores, memoryClass / 32));
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		switch (profile) {
+		case HIGH_THROUGHPUT:
+			options.put("SocketReceivePoll", "100");
+			options.put("ConnectionPoll", "500");
+			options.put("SocketTTL", "120000");
+			options.put("TTLPoll", "2000");
+			options.put("DispatcherThreads", Integer.toString(threads));
+			options.put("ReceiverThreads", Integer.toString(threads));
+			break;
+		case BATTERY_SAVER:
+			options.put("SocketReceivePoll", "1000");
+			options.put("ConnectionPoll", "2000");
+			options.put("SocketTTL", "15000");
+			options.put("TTLPoll", "5000");
+			options.put("DispatcherThreads", "1");
+			options.put("ReceiverThreads", "1");
+			break;
+		default:
+			options.put("SocketReceivePoll", "50");
+			options.put("ConnectionPoll", "250");
+			options.put("SocketTTL", "60000");
+			options.put("TTLPoll", "1000");
+			options.put("DispatcherThreads", Integer.toString(Math.min(2, threads)));
+			options.put("ReceiverThreads", Integer.toString(Math.min(2, threads)));
+		}
+		return options;
+	}
+
+	/**
+	 * Writes the configuration for the current profile to the given file. Returns the profile used.
+	 */
+	public static Profile write(Context context, File file) throws IOException {
+		final Profile profile = resolve(context, getProfile(context));
+		Map<String, String> options = options(profile, Runtime.getRuntime().availableProcessors(), memoryClass(context));
+
+		file.getParentFile().mkdirs();
+		File temporary = new File(file.getPath() + ".tmp");
+		BufferedReader template = new BufferedReader(new InputStreamReader(context.getResources().openRawResource(R.raw.ptp), "UTF-8"));
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+		try {
+			writer.write("# Generated for profile " + profile.name + "\n");
+			String line;
+			while ((line = template.readLine()) != null) {
+				final int space = line.indexOf(' ');
+				final String value = line.startsWith("#") || space == -1 ? null : options.get(line.substring(0, space));
+				writer.write(value != null ? line.substring(0, space + 1) + value : line);
+				writer.write('\n');
+			}
+		} finally {
+			template.close();
+			writer.close();
+		}
+		if (!temporary.renameTo(file)) throw new IOException("Could not write " + file.getPath());
+		return profile;
+	}
+
+	private static int memoryClass(Context context) {
+		return ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+	}
+
+	private static SharedPreferences prefs(Context context) { return context.getSharedPreferences(preferences, Context.MODE_PRIVATE); }
+}
@@ -0,0 +1,135 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped file through which {@link ClientService} hands large message payloads to its clients.
+ *
+ * The writer puts the UTF-8 bytes of a payload into a circular data area and passes only a handle (offset, stamp and
+ * length, see {@link #write(String)}) in the {@link android.os.Message}. This avoids copying the payload through the
+ * Binder, whose transaction buffer is limited to about 1 MB. Readers map the same file and copy the bytes out by handle.
+ *
+ * Payloads are overwritten once the writer has gone around the data area. Every record starts with the stamp of its
+ * handle, which a reader checks before and after copying; {@link #read(long[], int)} returns null for a payload
+ * which was overwritten in the meantime.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class PayloadArena {
+
+	public static final String arenaFile = "payloads.arena";
+	public static final int defaultCapacity = 16 * 1024 * 1024;
+	/** Payloads with more characters than this go through the arena, shorter ones stay in the message. */
+	public static final int inlineLimit = 8 * 1024;
+	/** Number of longs in a handle. */
+	public static final int handleSize = 3;
+
+	private static final int magic = 0x50544131;
+
+	// Header layout
+	private static final int MAGIC = 0;
+	private static final int CAPACITY = 4;
+	private static final int WRITE = 8;
+	private static final int STAMP = 16;
+	private static final int HEADER = 32;
+
+	// Record layout: stamp, length, payload bytes
+	private static final int RECORD_HEADER = 8 + 4;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final int capacity;
+
+	/**
+	 * Opens the arena in the given directory. Writer and readers open it alike, an existing arena is kept.
+	 *
+	 * @param capacity Size of the data area in bytes. Only applies to new arenas.
+	 */
+	public PayloadArena(File directory, int capacity) throws IOException {
+		file = new RandomAccessFile(new File(directory, arenaFile), "rw");
+
+		int existing = -1;
+		if (file.length() >= HEADER) {
+			file.seek(MAGIC);
+			existing = file.readInt() == magic ? file.readInt() : -1;
+			if (existing <= 0 || file.length() != HEADER + existing) existing = -1;
+		}
+		this.capacity = existing != -1 ? existing : capacity;
+		if (existing == -1) file.setLength(HEADER + this.capacity);
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + this.capacity);
+		if (existing == -1) {
+			map.putLong(WRITE, HEADER);
+			map.putLong(STAMP, 1);
+			map.putInt(CAPACITY, this.capacity);
+			map.putInt(MAGIC, magic);
+		}
+	}
+
+	/**
+	 * Returns whether a payload is large enough to go through the arena.
+	 */
+	public static boolean isLarge(String payload) { return payload.length() > inlineLimit; }
+
+	/**
+	 * Writes a payload and returns its handle, or null if the payload does not fit into the arena.
+	 */
+	public synchronized long[] write(String payload) {
+		final byte[] bytes;
+		try {
+			bytes = payload.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		final int size = RECORD_HEADER + bytes.length;
+		if (size > capacity / 2) return null;
+
+		long offset = map.getLong(WRITE);
+		if (offset + size > HEADER + capacity) offset = HEADER;
+		final long stamp = map.getLong(STAMP);
+
+		// The stamp goes last, so a reader never takes a half written record for a valid one.
+		ByteBuffer record = map.duplicate();
+		record.position((int) offset);
+		record.putLong(0);
+		record.putInt(bytes.length);
+		record.put(bytes);
+		map.putLong((int) offset, stamp);
+
+		map.putLong(WRITE, offset + size);
+		map.putLong(STAMP, stamp + 1);
+		return new long[] { offset, stamp, bytes.length };
+	}
+
+	/**
+	 * Copies out the payload of the handle at the given index of a handle array (a single handle has index 0). Returns
+	 * null if the payload was overwritten.
+	 */
+	public byte[] read(long[] handles, int index) {
+		final long offset = handles[index * handleSize];
+		final long stamp = handles[index * handleSize + 1];
+		final long length = handles[index * handleSize + 2];
+		if (offset < HEADER || length < 0 || offset + RECORD_HEADER + length > HEADER + capacity) return null;
+
+		ByteBuffer record = map.duplicate();
+		if (record.getLong((int) offset) != stamp || record.getInt((int) offset + 8) != length) return null;
+		byte[] bytes = new byte[(int) length];
+		record.position((int) offset + RECORD_HEADER);
+		record.get(bytes);
+		// The writer may have come around while copying.
+		return record.getLong((int) offset) == stamp ? bytes : null;
+	}
+
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Bundle;
+
+/**
+ * Counters and latency histogram of the receive pipeline of {@link ClientService}.
+ *
+ * There is one instance per process, see {@link #get()}. {@link ClientService} runs in the process of
+ * {@link MainActivity} (see AndroidManifest.xml), so the activity records display latencies here directly.
+ * Recording costs a few atomic increments and never allocates.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class ReceiveMetrics {
+
+	/** A histogram with power-of-two buckets. Bucket i counts values in [2^(i-1), 2^i), bucket 0 counts zeroes. */
+	public static class Histogram {
+
+		public static final int buckets = 32;
+
+		private final AtomicLongArray counts = new AtomicLongArray(buckets);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0) value = 0;
+			counts.incrementAndGet(Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(value)));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			raise(max, value);
+		}
+
+		public long count() { return count.get(); }
+
+		public long max() { return max.get(); }
+
+		public long mean() {
+			final long c = count.get();
+			return c == 0 ? 0 : sum.get() / c;
+		}
+
+		/**
+		 * Returns an upper bound for the given percentile (0 to 100), accurate to a power of two.
+		 */
+		public long percentile(double percentile) {
+			final long c = count.get();
+			if (c == 0) return 0;
+			final long rank = (long) Math.ceil(c * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets; ++i) {
+				seen += counts.get(i);
+				if (seen >= rank) return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+			}
+			return max.get();
+		}
+
+		public void reset() {
+			for (int i = 0; i < buckets; ++i) counts.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+
+	// Keys of the MSG_STATS reply
+	public static final String RECEIVED = "received";
+	public static final String DELIVERED = "delivered";
+	public static final String JOURNALED = "journaled";
+	public static final String REPLAYED = "replayed";
+	public static final String SEND_FAILURES = "sendFailures";
+	public static final String EVICTIONS = "evictions";
+	public static final String DIVERTED = "diverted";
+	public static final String SPILLED = "spilled";
+	public static final String BACKLOG = "backlog";
+	public static final String BACKLOG_HIGH_WATER = "backlogHighWater";
+	public static final String HANDOFF = "handoff";
+	public static final String HANDOFF_HIGH_WATER = "handoffHighWater";
+	public static final String HANDOFF_CAPACITY = "handoffCapacity";
+	public static final String SENDER_HITS = "senderHits";
+	public static final String SENDER_MISSES = "senderMisses";
+	public static final String DUPLICATE_CHECKS = "duplicateChecks";
+	public static final String DUPLICATES = "duplicates";
+	public static final String OUTBOX_QUEUED = "outboxQueued";
+	public static final String OUTBOX_HIGH_WATER = "outboxHighWater";
+	public static final String SENT = "sent";
+	public static final String SEND_FAILED = "sendFailed";
+	public static final String SEND_LATENCY_P50 = "sendLatencyP50";
+	public static final String SEND_LATENCY_P99 = "sendLatencyP99";
+	public static final String TOR_BACKEND = "torBackend";
+	public static final String TOR_STARTUP = "torStartup";
+	public static final String TOR_MEMORY = "torMemory";
+	public static final String IDENTITIES = "identities";
+	public static final String QUEUED_BYTES = "queuedBytes";
+	public static final String MEMORY_PRESSURE = "memoryPressure";
+	public static final String LATENCY_COUNT = "latencyCount";
+	public static final String LATENCY_MEAN = "latencyMean";
+	public static final String LATENCY_P50 = "latencyP50";
+	public static final String LATENCY_P99 = "latencyP99";
+	public static final String LATENCY_MAX = "latencyMax";
+	public static final String DUMP = "dump";
+
+	private static final ReceiveMetrics instance = new ReceiveMetrics();
+
+	public static ReceiveMetrics get() { return instance; }
+
+	/** Messages received from PTP. */
+	public final AtomicLong received = new AtomicLong();
+	/** Messages sent to a client, live or replayed. */
+	public final AtomicLong delivered = new AtomicLong();
+	/** Messages put into the journal because no client could take them. */
+	public final AtomicLong journaled = new AtomicLong();
+	/** Messages sent to a client from the journal. */
+	public final AtomicLong replayed = new AtomicLong();
+	/** Sends to a client which failed with a RemoteException, or were dropped since the client's queue was full. */
+	public final AtomicLong sendFailures = new AtomicLong();
+	/** Clients unregistered since their sends kept failing. */
+	public final AtomicLong evictions = new AtomicLong();
+	/** Messages moved to the journal since the client was out of credit. */
+	public final AtomicLong diverted = new AtomicLong();
+	/** Messages moved from the queues of the clients to the journal to save memory. */
+	public final AtomicLong spilled = new AtomicLong();
+	/** Highest number of messages waiting in the journal. */
+	public final AtomicLong backlogHighWater = new AtomicLong();
+	/** Milliseconds from receiving a message from PTP until MainActivity showed it. */
+	public final Histogram latency = new Histogram();
+
+	private ReceiveMetrics() { }
+
+	/**
+	 * Records the current number of messages waiting in the journal.
+	 */
+	public void backlog(long size) { raise(backlogHighWater, size); }
+
+	/**
+	 * Returns the metrics as a bundle for a MSG_STATS reply.
+	 *
+	 * @param backlog The current number of messages waiting in the journal.
+	 * @param handoff The ring between the PTP receive thread and the delivery.
+	 */
+	public Bundle toBundle(long backlog, ReceiveRing<?> handoff) {
+		Bundle bundle = new Bundle();
+		bundle.putLong(RECEIVED, received.get());
+		bundle.putLong(DELIVERED, delivered.get());
+		bundle.putLong(JOURNALED, journaled.get());
+		bundle.putLong(REPLAYED, replayed.get());
+		bundle.putLong(SEND_FAILURES, sendFailures.get());
+		bundle.putLong(EVICTIONS, evictions.get());
+		bundle.putLong(DIVERTED, diverted.get());
+		bundle.putLong(SPILLED, spilled.get());
+		bundle.putLong(BACKLOG, backlog);
+		bundle.putLong(BACKLOG_HIGH_WATER, backlogHighWater.get());
+		bundle.putLong(HANDOFF, handoff.occupancy());
+		bundle.putLong(HANDOFF_HIGH_WATER, handoff.highWater());
+		bundle.putInt(HANDOFF_CAPACITY, handoff.capacity());
+		bundle.putLong(LATENCY_COUNT, latency.count());
+		bundle.putLong(LATENCY_MEAN, latency.mean());
+		bundle.putLong(LATENCY_P50, latency.percentile(50));
+		bundle.putLong(LATENCY_P99, latency.percentile(99));
+		bundle.putLong(LATENCY_MAX, latency.max());
+		bundle.putString(DUMP, dump(backlog, handoff));
+		return bundle;
+	}
+
+	/**
+	 * Writes the metrics as text, in the style of dumpsys.
+	 */
+	public void dump(PrintWriter writer, long backlog, ReceiveRing<?> handoff) {
+		writer.println("Receive pipeline:");
+		writer.println("  received=" + received.get() + " delivered=" + delivered.get() + " replayed=" + replayed.get());
+		writer.println("  journaled=" + journaled.get() + " sendFailures=" + sendFailures.get() + " evictions=" + evictions.get()
+				+ " diverted=" + diverted.get() + " spilled=" + spilled.get());
+		writer.println("  backlog=" + backlog + " backlogHighWater=" + backlogHighWater.get());
+		writer.println("  handoff=" + handoff.occupancy() + "/" + handoff.capacity() + " handoffHighWater=" + handoff.highWater()
+				+ " wait=" + handoff.strategy());
+		writer.println("Receive-to-display latency (ms):");
+		writer.println("  count=" + latency.count() + " mean=" + latency.mean() + " p50<=" + latency.percentile(50)
+				+ " p90<=" + latency.percentile(90) + " p99<=" + latency.percentile(99) + " max=" + latency.max());
+	}
+
+	public String dump(long backlog, ReceiveRing<?> handoff) {
+		StringWriter text = new StringWriter();
+		dump(new PrintWriter(text), backlog, handoff);
+		return text.toString();
+	}
+
+	private static void raise(AtomicLong maximum, long value) {
+		long current;
+		while (value > (current = maximum.get()) && !maximum.compareAndSet(current, value));
+	}
+}
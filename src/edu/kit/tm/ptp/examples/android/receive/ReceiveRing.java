@@ -0,0 +1,186 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated, lock-free ring buffer which hands received PTP messages from the receive thread to a delivery thread.
+ *
+ * The receive callback only claims a slot and stores the message in it, so journaling and IPC never slow down reading
+ * from the hidden service sockets. Slots are reused and publishing does not allocate. PTP may run several receiver
+ * threads (ReceiverThreads in ptp.ini), so producers claim slots atomically; the single consumer runs on the thread
+ * started by {@link #start()}.
+ *
+ * How the consumer waits for messages, and producers wait for a free slot when the ring is full, is configurable.
+ *
+ * The ring only passes the messages on, so it does not depend on the PTP message type and runs on any JVM.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class ReceiveRing<T> implements Runnable {
+
+	/** How threads wait for the ring. */
+	public static enum WaitStrategy {
+		/** Busy spin. Lowest latency, keeps a core busy. */
+		SPIN,
+		/** Yield to other threads between checks. */
+		YIELD,
+		/** Yield for a while, then sleep until woken up. Saves battery, costs a wakeup per idle period. */
+		PARK
+	}
+
+	/** Takes the messages off the ring. */
+	public static interface Consumer<T> {
+
+		/**
+		 * @param receivedAt Time ({@link android.os.SystemClock#uptimeMillis()}) the message arrived from PTP.
+		 * @param identity Name of the identity which received the message.
+		 */
+		public void consume(T message, long receivedAt, String identity);
+	}
+
+	public static final int defaultCapacity = 1024;
+
+	/**
+	 * How long (in nanoseconds) a producer parks while the ring is full. The consumer does not wake producers, so they
+	 * check again after this. Only happens under overload, while the consumer is busy anyway.
+	 */
+	private static final long fullParkNanos = 1000 * 1000;
+	/** Number of yields before parking. Under load the wait is usually over by then. */
+	private static final int yieldsBeforePark = 64;
+
+	private final int capacity;
+	private final int mask;
+	private final T[] messages;
+	private final long[] receivedAt;
+	private final String[] identities;
+	// Sequence number + 1 of the message last published in each slot
+	private final AtomicLongArray published;
+	// Next sequence number to claim
+	private final AtomicLong claimed = new AtomicLong();
+	// Next sequence number to consume. Only written by the consumer.
+	private volatile long consumed = 0;
+	private final AtomicLong highWater = new AtomicLong();
+	private final WaitStrategy strategy;
+	private final Consumer<T> consumer;
+	private volatile Thread thread = null;
+	private volatile boolean running = false;
+	private volatile boolean sleeping = false;
+
+	/**
+	 * @param capacity The number of slots, a power of two.
+	 */
+	@SuppressWarnings("unchecked")
+	public ReceiveRing(int capacity, WaitStrategy strategy, Consumer<T> consumer) {
+		if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.messages = (T[]) new Object[capacity];
+		this.receivedAt = new long[capacity];
+		this.identities = new String[capacity];
+		this.published = new AtomicLongArray(capacity);
+		this.strategy = strategy;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Starts the consumer thread.
+	 */
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(this, "ClientService handoff");
+		thread.start();
+	}
+
+	/**
+	 * Stops the consumer thread once it has consumed the messages published so far.
+	 */
+	public void stop() {
+		Thread current;
+		synchronized (this) {
+			running = false;
+			current = thread;
+		}
+		if (current == null) return;
+		LockSupport.unpark(current);
+		try {
+			current.join();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Hands a message to the consumer. Waits while the ring is full.
+	 */
+	public void publish(T message, long at, String identity) {
+		final long sequence = claimed.getAndIncrement();
+		for (int attempt = 0; sequence - consumed >= capacity; ++attempt) {
+			if (strategy == WaitStrategy.SPIN) continue;
+			if (strategy == WaitStrategy.YIELD || attempt < yieldsBeforePark) Thread.yield();
+			else LockSupport.parkNanos(this, fullParkNanos);
+		}
+		final int slot = (int) sequence & mask;
+		messages[slot] = message;
+		receivedAt[slot] = at;
+		identities[slot] = identity;
+		// The volatile write makes the slot visible to the consumer.
+		published.set(slot, sequence + 1);
+		if (sleeping) LockSupport.unpark(thread);
+	}
+
+	/** Messages claimed but not consumed yet. */
+	public long occupancy() { return claimed.get() - consumed; }
+
+	/** Highest occupancy seen by the consumer. */
+	public long highWater() { return highWater.get(); }
+
+	public int capacity() { return capacity; }
+
+	public WaitStrategy strategy() { return strategy; }
+
+	@Override
+	public void run() {
+		long next = consumed;
+		int attempt = 0;
+		while (true) {
+			final int slot = (int) next & mask;
+			if (published.get(slot) != next + 1) {
+				if (!running) return;
+				await(slot, next, attempt++);
+				continue;
+			}
+			attempt = 0;
+			final T message = messages[slot];
+			final long at = receivedAt[slot];
+			final String identity = identities[slot];
+			messages[slot] = null;
+
+			final long occupancy = claimed.get() - next;
+			long current;
+			while (occupancy > (current = highWater.get()) && !highWater.compareAndSet(current, occupancy));
+
+			try {
+				consumer.consume(message, at, identity);
+			} catch (RuntimeException e) {
+				// A failing message must not stop the delivery of the others.
+			}
+			consumed = ++next;
+		}
+	}
+
+	private void await(int slot, long next, int attempt) {
+		if (strategy == WaitStrategy.SPIN) return;
+		if (strategy == WaitStrategy.YIELD || attempt < yieldsBeforePark) {
+			Thread.yield();
+			return;
+		}
+		sleeping = true;
+		// Check again after announcing the sleep, a producer which published before did not see it. Without a bound,
+		// an idle consumer does not wake up until publish() or stop() unparks it.
+		if (published.get(slot) != next + 1 && running) LockSupport.park(this);
+		sleeping = false;
+	}
+}
@@ -0,0 +1,108 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.kit.tm.ptp.Identifier;
+
+/**
+ * LRU bounded intern table of message senders.
+ *
+ * Maps a PTP {@link Identifier}, or an address read back from the journal or the history, to a {@link Sender}
+ * with a compact ID and the strings needed for display. Traffic usually comes from a few peers, so the address is
+ * computed and the display label concatenated once per peer instead of once per message.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class SenderTable {
+
+	/** An interned sender. */
+	public static class Sender {
+
+		/** Compact ID, unique within the table. */
+		public final int id;
+		public final String address;
+		/** The address followed by ": ", as it prefixes messages in the chat list. */
+		public final String label;
+
+		public Sender(int id, String address) {
+			this.id = id;
+			this.address = address;
+			this.label = address + ": ";
+		}
+	}
+
+	public static final int defaultCapacity = 256;
+
+	private final Map<Object, Sender> senders;
+	private int capacity;
+	private int nextId = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	public SenderTable(int capacity) {
+		this.capacity = capacity;
+		senders = new LinkedHashMap<Object, Sender>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Sender> eldest) { return size() > SenderTable.this.capacity; }
+		};
+	}
+
+	/**
+	 * Changes the number of cached senders, dropping the least recently used ones if there are too many. A dropped
+	 * sender gets a new ID when it is seen again.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		for (Iterator<Sender> iterator = senders.values().iterator(); senders.size() > capacity && iterator.hasNext();) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the sender of a PTP message. The address is only asked from the identifier on a miss.
+	 */
+	public synchronized Sender intern(Identifier identifier) {
+		Sender sender = senders.get(identifier);
+		if (sender != null) {
+			++hits;
+			return sender;
+		}
+		++misses;
+		sender = new Sender(nextId++, identifier.getTorAddress());
+		senders.put(identifier, sender);
+		return sender;
+	}
+
+	/**
+	 * Returns the sender with the given address.
+	 */
+	public synchronized Sender intern(String address) {
+		Sender sender = senders.get(address);
+		if (sender != null) {
+			++hits;
+			return sender;
+		}
+		++misses;
+		sender = new Sender(nextId++, address);
+		senders.put(address, sender);
+		return sender;
+	}
+
+	public synchronized long hits() { return hits; }
+
+	public synchronized long misses() { return misses; }
+
+	public synchronized int size() { return senders.size(); }
+
+	public synchronized void dump(PrintWriter writer) {
+		writer.println("Senders: size=" + senders.size() + " capacity=" + capacity + " hits=" + hits + " misses=" + misses);
+	}
+}
@@ -0,0 +1,113 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.SystemClock;
+
+/**
+ * Runs the stages of the {@link ClientService} startup on background threads and records their timing.
+ *
+ * Stages which do not depend on each other run at the same time. A stage which needs the result of another one takes
+ * its {@link Future} and waits for it with {@link #await(Future)}; its own timing starts after the wait.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class StartupPipeline {
+
+	/** Timing of a finished stage. */
+	public static class Timing {
+
+		public final String stage;
+		/** Milliseconds from the start of the pipeline until the stage started working. */
+		public final long start;
+		/** Milliseconds the stage worked. */
+		public final long duration;
+		public final boolean failed;
+
+		public Timing(String stage, long start, long duration, boolean failed) {
+			this.stage = stage;
+			this.start = start;
+			this.duration = duration;
+			this.failed = failed;
+		}
+	}
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final long started = SystemClock.uptimeMillis();
+	private final List<Timing> timings = new ArrayList<Timing>();
+
+	/**
+	 * Starts a stage.
+	 */
+	public <T> Future<T> submit(final String stage, final Callable<T> work) {
+		return executor.submit(new Callable<T>() {
+
+			@Override
+			public T call() throws Exception {
+				final long start = SystemClock.uptimeMillis();
+				boolean failed = true;
+				try {
+					T result = work.call();
+					failed = false;
+					return result;
+				} finally {
+					record(stage, start, SystemClock.uptimeMillis(), failed);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records the timing of a stage which ran outside the pipeline, e.g. with its own callbacks.
+	 */
+	public void record(String stage, long start, long end, boolean failed) {
+		synchronized (timings) {
+			timings.add(new Timing(stage, start - started, end - start, failed));
+		}
+	}
+
+	/**
+	 * Returns the milliseconds since the pipeline was created.
+	 */
+	public long elapsed() { return SystemClock.uptimeMillis() - started; }
+
+	/**
+	 * Waits for the result of another stage. Failures of that stage are rethrown as they were thrown.
+	 */
+	public static <T> T await(Future<T> stage) throws Exception {
+		try {
+			return stage.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	public List<Timing> getTimings() {
+		synchronized (timings) {
+			return new ArrayList<Timing>(timings);
+		}
+	}
+
+	/**
+	 * Stops accepting stages. Running stages finish.
+	 */
+	public void shutdown() { executor.shutdown(); }
+
+	/**
+	 * Writes the stage timings as text, in the style of dumpsys.
+	 */
+	public void dump(PrintWriter writer) {
+		writer.println("Startup stages (ms):");
+		for (Timing timing : getTimings())
+			writer.println("  " + timing.stage + ": start=" + timing.start + " duration=" + timing.duration + (timing.failed ? " FAILED" : ""));
+	}
+}
@@ -0,0 +1,250 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+/**
+ * A client registered with {@link ClientService} for received messages.
+ *
+ * Every subscriber has its own bounded queue, drained by its own worker on a shared executor. Offering a delivery never
+ * blocks, so a slow or dead client holds up neither the PTP receive thread nor the other clients. A subscriber whose
+ * sends keep failing, or whose queue keeps overflowing, is evicted.
+ *
+ * Clients which take part in the flow control (see {@link CreditWindow}) are only sent messages while they have credit.
+ * A queue overflowing for lack of credit is passed to the owner, which may move the deliveries to its backlog.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class Subscriber implements Runnable {
+
+	/** One message or a batch of messages, shared by all subscribers it is offered to. */
+	public static class Delivery {
+
+		/** Names of the identities which received the messages. */
+		public final String[] identities;
+		public final String[] addresses;
+		public final String[] contents;
+		public final long[] sequences;
+		/** Time ({@link android.os.SystemClock#uptimeMillis()}) the (first) message arrived from PTP, -1 if not known. */
+		public final long receivedAt;
+		/** Approximate heap size (in bytes) of the contents and addresses. */
+		public final long bytes;
+		/** Message data, built for the first subscriber and shared with the others. */
+		Bundle data = null;
+
+		public Delivery(String[] identities, String[] addresses, String[] contents, long[] sequences, long receivedAt) {
+			this.identities = identities;
+			this.addresses = addresses;
+			this.contents = contents;
+			this.sequences = sequences;
+			this.receivedAt = receivedAt;
+			long chars = 0;
+			for (int i = 0; i < contents.length; ++i) chars += contents[i].length() + addresses[i].length();
+			this.bytes = 2 * chars;
+		}
+
+		public int size() { return contents.length; }
+	}
+
+	/** The service side of a subscriber. */
+	public static interface Owner {
+
+		/** Creates the message sending a delivery to a client. */
+		public android.os.Message message(Delivery delivery);
+
+		public void delivered(Subscriber subscriber, Delivery delivery);
+
+		public void failed(Subscriber subscriber, Delivery delivery);
+
+		/**
+		 * Called when a delivery does not fit in the queue of a subscriber without credit. Returns whether the owner
+		 * took the delivery and the queued ones, see {@link Subscriber#drain()}. Otherwise the overflow counts as failure.
+		 */
+		public boolean stalled(Subscriber subscriber, Delivery delivery);
+
+		/**
+		 * Called once when a subscriber is evicted.
+		 *
+		 * @param undelivered The deliveries the subscriber did not get, oldest first.
+		 */
+		public void evicted(Subscriber subscriber, List<Delivery> undelivered);
+	}
+
+	public static final int defaultQueueSize = 256;
+	/** Number of failures in a row after which a subscriber is evicted. */
+	public static final int maxFailures = 3;
+	/** Credits of a client which does not take part in the flow control. */
+	public static final int unlimited = -1;
+
+	public final Messenger messenger;
+	private final Owner owner;
+	private final Executor executor;
+	private final BlockingQueue<Delivery> queue;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile boolean evicted = false;
+	// Bytes of the queued deliveries, see Delivery.bytes
+	private final AtomicLong queuedBytes = new AtomicLong();
+	// Failed sends and overflows since the last successful send
+	private final AtomicInteger failures = new AtomicInteger();
+	// Sequence number of the last message the client has seen
+	private volatile long acknowledged;
+	private final boolean flowControlled;
+	// Messages the client may still be sent. Batches may take it below zero.
+	private final AtomicLong credits;
+
+	/**
+	 * @param acknowledged The sequence number of the last message the client has seen, or -1.
+	 * @param credits The number of messages the client may be sent initially, or {@link #unlimited}.
+	 */
+	public Subscriber(Messenger messenger, long acknowledged, int credits, Owner owner, Executor executor, int queueSize) {
+		this.messenger = messenger;
+		this.acknowledged = acknowledged;
+		this.flowControlled = credits != unlimited;
+		this.credits = new AtomicLong(flowControlled ? credits : 0);
+		this.owner = owner;
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<Delivery>(queueSize);
+	}
+
+	/**
+	 * Queues a delivery without blocking. Returns false if the queue is full or the subscriber is evicted.
+	 */
+	public boolean offer(Delivery delivery) {
+		if (evicted) return false;
+		if (!queue.offer(delivery)) {
+			// Without credit the client is behind, not broken.
+			if (!hasCredit() && owner.stalled(this, delivery)) return false;
+			fail(delivery, false);
+			return false;
+		}
+		queuedBytes.addAndGet(delivery.bytes);
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Takes the credits and the acknowledgement of a MSG_MESSAGE_STATUS from the client.
+	 */
+	public void grant(int credits, long acknowledged) {
+		if (acknowledged > this.acknowledged) this.acknowledged = acknowledged;
+		if (!flowControlled || credits <= 0) return;
+		this.credits.addAndGet(credits);
+		schedule();
+	}
+
+	public boolean hasCredit() { return !flowControlled || credits.get() > 0; }
+
+	/** The credits left, or {@link #unlimited}. */
+	public long getCredits() { return flowControlled ? credits.get() : unlimited; }
+
+	/**
+	 * Removes the queued deliveries and returns them, oldest first.
+	 */
+	public List<Delivery> drain() {
+		List<Delivery> drained = new ArrayList<Delivery>();
+		queue.drainTo(drained);
+		taken(drained);
+		return drained;
+	}
+
+	/**
+	 * Sends a delivery right away on the calling thread, e.g. when replaying missed messages.
+	 */
+	public void send(Delivery delivery) throws RemoteException {
+		messenger.send(owner.message(delivery));
+		if (flowControlled) credits.addAndGet(-delivery.size());
+		acknowledge(delivery);
+	}
+
+	public long getAcknowledged() { return acknowledged; }
+
+	public int getQueued() { return queue.size(); }
+
+	/** Bytes of the queued deliveries, approximately. */
+	public long getQueuedBytes() { return queuedBytes.get(); }
+
+	public boolean isEvicted() { return evicted; }
+
+	/**
+	 * Whether no worker is sending to the client. After {@link #drain()} a worker may still be sending the delivery it
+	 * took before.
+	 */
+	public boolean isIdle() { return !scheduled.get(); }
+
+	/**
+	 * Stops the worker. Queued deliveries are dropped.
+	 */
+	public void cancel() {
+		evicted = true;
+		queue.clear();
+		queuedBytes.set(0);
+	}
+
+	/**
+	 * Drains the queue.
+	 */
+	@Override
+	public void run() {
+		do {
+			Delivery delivery;
+			while (!evicted && hasCredit() && (delivery = queue.poll()) != null) {
+				queuedBytes.addAndGet(-delivery.bytes);
+				try {
+					send(delivery);
+					failures.set(0);
+					owner.delivered(this, delivery);
+				} catch (RemoteException e) {
+					fail(delivery, true);
+				}
+			}
+			scheduled.set(false);
+			// Deliveries offered, or credits granted, after the last poll but before the flag was cleared need another round.
+		} while (!evicted && hasCredit() && !queue.isEmpty() && scheduled.compareAndSet(false, true));
+	}
+
+	private void schedule() {
+		if (hasCredit() && !queue.isEmpty() && scheduled.compareAndSet(false, true)) executor.execute(this);
+	}
+
+	private void taken(List<Delivery> deliveries) {
+		long bytes = 0;
+		for (Delivery delivery : deliveries) bytes += delivery.bytes;
+		queuedBytes.addAndGet(-bytes);
+	}
+
+	private void acknowledge(Delivery delivery) {
+		final long last = delivery.sequences[delivery.size() - 1];
+		if (last > acknowledged) acknowledged = last;
+	}
+
+	/**
+	 * @param oldest Whether the delivery is older than the queued ones (a failed send) or newer (an overflow).
+	 */
+	private void fail(Delivery delivery, boolean oldest) {
+		owner.failed(this, delivery);
+		if (failures.incrementAndGet() < maxFailures) return;
+		synchronized (this) {
+			if (evicted) return;
+			evicted = true;
+		}
+		List<Delivery> undelivered = new ArrayList<Delivery>();
+		List<Delivery> queued = new ArrayList<Delivery>();
+		queue.drainTo(queued);
+		taken(queued);
+		if (oldest) undelivered.add(delivery);
+		undelivered.addAll(queued);
+		if (!oldest) undelivered.add(delivery);
+		owner.evicted(this, undelivered);
+	}
+}
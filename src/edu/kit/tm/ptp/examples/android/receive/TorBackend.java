@@ -0,0 +1,34 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import android.content.Context;
+
+/**
+ * A way of getting a Tor for PTP, used by {@link TorManager}.
+ *
+ * The backend runs its own Tor process, or attaches to a Tor which runs anyway (see {@link ExternalTor}). Starts and
+ * stops run on the lifecycle thread of {@link TorManager}, one after the other.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public interface TorBackend {
+
+	/**
+	 * Starts Tor, or connects to it, and returns its ports once it is bootstrapped. A stop request interrupts the
+	 * calling thread; the backend then throws a {@link java.util.concurrent.CancellationException}.
+	 */
+	public TorPorts start(Context context) throws Exception;
+
+	/**
+	 * Stops Tor, or disconnects from it. Returns a message for the listeners.
+	 */
+	public String stop(Context context) throws Exception;
+
+	/**
+	 * Returns the resident memory (in kB) of the Tor process run by this backend, 0 if it runs none, -1 if unknown.
+	 */
+	public long getMemory();
+
+	/** A short name for logs and statistics. */
+	public String getName();
+}
@@ -0,0 +1,310 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.freehaven.tor.control.EventHandler;
+import net.freehaven.tor.control.TorControlConnection;
+import net.freehaven.tor.control.TorControlError;
+
+/**
+ * Long-lived, authenticated connection to the control port of Tor. Owned by {@link TorManager}.
+ *
+ * Opens the connection on first use, reconnects once if a command fails and serializes all commands.
+ * GETINFO values which do not change while Tor is running are cached.
+ *
+ * jtorctl waits for replies without a timeout and never wakes the waiting caller once its parse thread ended. So the
+ * commands run on a worker thread and the caller gives up after {@link #replyTimeout}, dropping the connection.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class TorControlChannel {
+
+	/** Timeout (in milliseconds) for connecting to the control port. Guards against stale control port files. */
+	public static final int connectTimeout = 1000;
+	/** Timeout (in milliseconds) for checking whether a Tor left running is still there. Tor runs on this device. */
+	public static final int probeTimeout = 200;
+	/** Timeout (in milliseconds) for the reply to a command. Tor replies at once unless it hangs or died. */
+	public static final int replyTimeout = 10 * 1000;
+	/** Interval (in milliseconds) for checking whether the connection broke while waiting for a reply. */
+	private static final int replyPoll = 100;
+
+	/** GETINFO keys whose values stay the same for the lifetime of the Tor process. */
+	private static final Set<String> cachedKeys = new HashSet<String>(Arrays.asList(
+		"net/listeners/socks",
+		"version",
+		"config-file"
+	));
+
+	/** A command to run over the control connection. */
+	public static interface Command<T> {
+
+		public T run(TorControlConnection connection) throws IOException;
+	}
+
+	private final String host;
+	private final Map<String, String> cache = new HashMap<String, String>();
+	private int port = -1;
+	private Socket socket = null;
+	private TorControlConnection connection = null;
+	// Reads the replies and events of the connection. Ends when the connection breaks.
+	private Thread parser = null;
+	// Runs the commands, so waiting for a reply can time out
+	private final ExecutorService commands = Executors.newCachedThreadPool();
+	private EventHandler handler = null;
+	private List<String> events = new ArrayList<String>();
+	// Sent to authenticate, empty if Tor needs no authentication
+	private byte[] secret = new byte[0];
+
+	public TorControlChannel(String host) { this.host = host; }
+
+	/**
+	 * Sets the secret to authenticate with, e.g. the content of Tor's cookie file, or null for none. Drops the current
+	 * connection if the secret changed.
+	 */
+	public synchronized void setSecret(byte[] secret) {
+		final byte[] next = secret != null ? secret : new byte[0];
+		if (Arrays.equals(this.secret, next)) return;
+		disconnect();
+		this.secret = next;
+	}
+
+	/**
+	 * Sets the control port to use. Drops the current connection and the cache if the port changed.
+	 */
+	public synchronized void setPort(int port) {
+		if (this.port == port) return;
+		close();
+		this.port = port;
+	}
+
+	public synchronized int getPort() { return port; }
+
+	/**
+	 * Switches to the given control port and connects with a short timeout. Returns false, with the channel closed, if
+	 * nothing accepts a connection there.
+	 */
+	public synchronized boolean probe(int port) {
+		setPort(port);
+		try {
+			connect(probeTimeout);
+			return true;
+		} catch (IOException e) {
+			close();
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a command, reconnecting and retrying once if it fails or Tor does not reply in time.
+	 */
+	public synchronized <T> T execute(Command<T> command) throws IOException {
+		try {
+			return run(command);
+		} catch (IOException e) {
+			disconnect();
+			return run(command);
+		}
+	}
+
+	/**
+	 * Returns the value of a GETINFO key. Served from the cache for keys which do not change.
+	 */
+	public synchronized String getInfo(final String key) throws IOException {
+		String value = cache.get(key);
+		if (value != null) return value;
+
+		value = execute(new Command<String>() {
+
+			@Override
+			public String run(TorControlConnection connection) throws IOException { return connection.getInfo(key); }
+		});
+		if (value != null && cachedKeys.contains(key)) cache.put(key, value);
+		return value;
+	}
+
+	/**
+	 * Returns a cached GETINFO value without touching the connection, or null if it is not cached.
+	 */
+	public synchronized String getCachedInfo(String key) { return cache.get(key); }
+
+	/**
+	 * Sets the handler for asynchronous events and the events Tor should report. Both are restored after a reconnect.
+	 */
+	public synchronized void setEvents(EventHandler handler, final List<String> events) throws IOException {
+		this.handler = handler;
+		this.events = new ArrayList<String>(events);
+		execute(new Command<Void>() {
+
+			@Override
+			public Void run(TorControlConnection connection) throws IOException {
+				connection.setEventHandler(TorControlChannel.this.handler);
+				connection.setEvents(TorControlChannel.this.events);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Sets a configuration option of the running Tor, without saving it to the torrc.
+	 */
+	public synchronized void setConf(final String key, final String value) throws IOException {
+		execute(new Command<Void>() {
+
+			@Override
+			public Void run(TorControlConnection connection) throws IOException {
+				connection.setConf(key, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Resets a configuration option of the running Tor to its torrc value, or to the default.
+	 */
+	public synchronized void resetConf(final String key) throws IOException {
+		execute(new Command<Void>() {
+
+			@Override
+			public Void run(TorControlConnection connection) throws IOException {
+				connection.resetConf(Arrays.asList(key));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Signals Tor to shut down and closes the channel.
+	 */
+	public synchronized void shutdownTor(final String signal) throws IOException {
+		execute(new Command<Void>() {
+
+			@Override
+			public Void run(TorControlConnection connection) throws IOException {
+				connection.shutdownTor(signal);
+				return null;
+			}
+		});
+		close();
+	}
+
+	public synchronized boolean isConnected() { return connection != null; }
+
+	/**
+	 * Closes the connection and forgets the cached values and the registered events.
+	 */
+	public synchronized void close() {
+		disconnect();
+		cache.clear();
+		handler = null;
+		events = new ArrayList<String>();
+		port = -1;
+	}
+
+	private <T> T run(Command<T> command) throws IOException {
+		final TorControlConnection c = connect(connectTimeout);
+		return await(command, c, parser);
+	}
+
+	/**
+	 * Runs a command on a worker thread and waits at most {@link #replyTimeout} for it, or until the parse thread of
+	 * the connection ended. Errors replied by Tor are passed on, anything else which went wrong is an IOException.
+	 */
+	private <T> T await(final Command<T> command, final TorControlConnection c, Thread parser) throws IOException {
+		Future<T> reply = commands.submit(new Callable<T>() {
+
+			@Override
+			public T call() throws IOException { return command.run(c); }
+		});
+		final long deadline = System.currentTimeMillis() + replyTimeout;
+		try {
+			while (true) {
+				try {
+					return reply.get(replyPoll, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					if (parser.isAlive() && System.currentTimeMillis() < deadline) continue;
+					// Interrupting the worker ends its wait for the reply.
+					reply.cancel(true);
+					if (!parser.isAlive()) throw new IOException("Tor closed the control connection.");
+					throw new IOException("No reply from Tor within " + replyTimeout + " ms.");
+				}
+			}
+		} catch (InterruptedException e) {
+			reply.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for Tor.");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof TorControlError) throw (TorControlError) cause;
+			// E.g. the CancellationException of jtorctl when the wait for the reply was interrupted
+			throw new IOException(cause.getMessage());
+		}
+	}
+
+	private TorControlConnection connect(int timeout) throws IOException {
+		// The parse thread ends when Tor closes the connection, replies would never arrive.
+		if (connection != null && parser.isAlive()) return connection;
+		disconnect();
+		if (port == -1) throw new IOException("No Tor control port set.");
+
+		Socket s = new Socket();
+		boolean connected = false;
+		try {
+			s.connect(new InetSocketAddress(host, port), timeout);
+			TorControlConnection c = new TorControlConnection(s);
+			Thread t = c.launchThread(true);
+			// The parse thread throws when the connection breaks, which would take down the process. The next
+			// command notices the dead thread and reconnects.
+			t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+				@Override
+				public void uncaughtException(Thread thread, Throwable e) { }
+			});
+			await(new Command<Void>() {
+
+				@Override
+				public Void run(TorControlConnection connection) throws IOException {
+					connection.authenticate(secret);
+					if (handler != null) connection.setEventHandler(handler);
+					if (!events.isEmpty()) connection.setEvents(events);
+					return null;
+				}
+			}, c, t);
+			socket = s;
+			connection = c;
+			parser = t;
+			connected = true;
+		} finally {
+			// Also when Tor rejected the authentication
+			if (!connected) try { s.close(); } catch (IOException ignored) { }
+		}
+		return connection;
+	}
+
+	private void disconnect() {
+		connection = null;
+		parser = null;
+		if (socket == null) return;
+		// Shutting down the input first lets the parse thread of the connection see a clean end of stream.
+		try { socket.shutdownInput(); } catch (IOException e) { }
+		try { socket.close(); } catch (IOException e) { }
+		socket = null;
+	}
+}
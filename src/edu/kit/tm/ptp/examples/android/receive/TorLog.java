@@ -0,0 +1,96 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last lines Tor wrote to its standard output and error in a ring.
+ *
+ * Both streams are drained continuously by their own threads, so Tor never blocks on a full pipe. Bootstrap progress
+ * lines (Bootstrapped NN%) are reported as they arrive, which is sooner than the control port tells.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class TorLog {
+
+	/** Receives the bootstrap progress found in the output. */
+	public static interface Listener {
+
+		public void bootstrapped(int percent);
+	}
+
+	public static final int defaultCapacity = 256;
+
+	private final String[] lines;
+	private int next = 0;
+	private int size = 0;
+
+	public TorLog(int capacity) { lines = new String[capacity]; }
+
+	/**
+	 * Drains Tor's output streams until the process closes them.
+	 */
+	public void attach(Process process, Listener listener) {
+		drain(process.getInputStream(), "", listener);
+		drain(process.getErrorStream(), "stderr: ", listener);
+	}
+
+	public synchronized void add(String line) {
+		lines[next] = line;
+		next = (next + 1) % lines.length;
+		if (size < lines.length) ++size;
+	}
+
+	/**
+	 * Returns the kept lines, oldest first.
+	 */
+	public synchronized List<String> getLines() {
+		List<String> result = new ArrayList<String>(size);
+		for (int i = 0; i < size; ++i) result.add(lines[(next - size + i + lines.length) % lines.length]);
+		return result;
+	}
+
+	/**
+	 * Returns the kept lines as text.
+	 */
+	public String dump() {
+		StringBuilder text = new StringBuilder();
+		for (String line : getLines()) text.append(line).append('\n');
+		return text.toString();
+	}
+
+	public synchronized void clear() {
+		next = 0;
+		size = 0;
+		for (int i = 0; i < lines.length; ++i) lines[i] = null;
+	}
+
+	private void drain(final InputStream stream, final String prefix, final Listener listener) {
+		Thread pump = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						add(prefix + line);
+						final int percent = TorStatus.parseBootstrapped(line);
+						if (percent != -1) listener.bootstrapped(percent);
+					}
+				} catch (IOException e) {
+					// The process is gone.
+				} finally {
+					try { reader.close(); } catch (IOException e) { }
+				}
+			}
+		}, "Tor log " + (prefix.length() > 0 ? "stderr" : "stdout"));
+		pump.setDaemon(true);
+		pump.start();
+	}
+}
@@ -1,291 +1,650 @@
-package edu.kit.tm.ptp.examples.android.receive;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.concurrent.TimeoutException;
-import java.util.zip.ZipInputStream;
-
-import edu.kit.tm.ptp.utility.Constants;
-import edu.kit.tm.ptp.examples.android.receive.R;
-
-import net.freehaven.tor.control.TorControlConnection;
-
-import android.content.Context;
-import android.os.AsyncTask;
-
-/**
- * Android-specific manager for the Tor process. Might be included into main PeerTorPeer codebase in the future.
- * 
- * @author Simeon Andreev
- *
- */
-public class TorManager {
-
-	public static final long controlPortTimeout = 50 * 1000;
-	public static final long bootstrapTimeout = 90 * 1000;
-	public static final String delimiter = ":";
-	public static final String controlPortFile = "controlport";
-	public static final String workingSubdirectory = "/ptphome/";
-	
-	private static Process torProcess = null;
-
-	public static interface Listener {
-
-		public void success(String message);
-
-		public void update(String message);
-
-		public void failure(String message);
-	}
-
-	private static class Update {
-
-		public final int result;
-		public final String message;
-
-		public Update(int result, String message) {
-			this.result = result;
-			this.message = message;
-		}
-	}
-
-	private static abstract class Task extends AsyncTask<Void, Update, Void> {
-
-		protected final int SUCCESS = 0;
-		protected final int FAILURE = 1;
-		protected final int UPDATE = 2;
-
-		protected final Context context;
-		protected final Listener listener;
-
-		public Task(Context context, Listener listener) {
-			this.context = context;
-			this.listener = listener;
-		}
-
-		protected void onProgressUpdate(Update... update) {
-			if (update.length == 0) return;
-			final int l = update.length - 1;
-			if (update[l].result == SUCCESS) listener.success(update[l].message);
-			else if (update[l].result == UPDATE) listener.update(update[l].message);
-			else if (update[l].result == FAILURE) listener.failure(update[l].message);
-		}
-	}
-
-	private static class StartTask extends Task {
-
-		public StartTask(Context context, Listener listener) { super(context, listener); }
-
-		protected Void doInBackground(Void... params) {
-			final String directory = context.getFilesDir().getPath();
-			final String workingDirectory = directory + workingSubdirectory;
-			final String torFile = workingDirectory + "tor";
-			final String torrcFile = workingDirectory + "torrc";
-			final String configFile = workingDirectory + "/config/ptp.ini";
-			final String portFile = workingDirectory + controlPortFile;
-
-			try {
-				// Check if Tor is already running.
-				int controlPort = getControlPort(directory);
-				if (controlPort != -1) {
-					try {
-						Socket s = new Socket(Constants.localhost, controlPort);
-						TorControlConnection conn = new TorControlConnection(s);
-						conn.authenticate(new byte[0]);
-						final int socksPort = parsePort(conn.getInfo("net/listeners/socks").replace("\"", ""));
-						// If so, do not start it again.
-						publishProgress(new Update(SUCCESS, "Tor already running" + delimiter + controlPort + delimiter + socksPort));
-						return null;
-					} catch (IOException e) {
-					}
-				}
-				new File(workingDirectory).mkdirs();
-				new File(workingDirectory + "/config/").mkdir();
-				copy(context, torFile, R.raw.tor, true);
-				copy(context, torrcFile, R.raw.torrc, false);
-				copy(context, configFile, R.raw.ptp, false);
-				new File(torFile).setExecutable(true);
-
-				/** The parameters for the Tor execution command. */
-				final String[] cmd = {
-					/** The Tor executable file to run. */
-					torFile,
-					/** Tell Tor which torrc file to use. */
-					Constants.torrcoption,
-					torrcFile,
-					/** Tell Tor to use a cache directory. */
-					Constants.datadiroption,//"DataDirectory",
-					workingDirectory.toString(),
-					/** Tell Tor to write its control port to a file. */
-					Constants.ctlportoutoption,//"ControlPortWriteToFile",
-					portFile
-				};
-				torProcess = Runtime.getRuntime().exec(cmd);
-				publishProgress(new Update(UPDATE, "Bootstrapping started."));
-
-				// Wait until the control port file is written.
-				boolean controlPortFileExists = false;
-				long waited = 0;
-				while (waited < controlPortTimeout) {
-					try {
-						controlPortFileExists = new File(portFile).exists();
-						if (controlPortFileExists) break;
-						final long start = System.currentTimeMillis();
-						Thread.sleep(1000);
-						waited += System.currentTimeMillis() - start;
-					} catch (InterruptedException e) {
-						// Waiting was interrupted. Do nothing.
-					}
-				}
-				if (!controlPortFileExists) throw new TimeoutException("Tor did not create the control port file in the given timeout.");
-
-				controlPort = getControlPort(directory);
-				if (controlPort == -1) throw new TimeoutException("Could not read the control port output file.");
-
-				Socket socket = new Socket(Constants.localhost, controlPort);
-				TorControlConnection conn = new TorControlConnection(socket);
-				conn.authenticate(new byte[0]);
-				int percent = 0;
-
-				// Wait until the bootstrapping is done.
-				boolean done = false;
-				waited = 0;
-				while (waited < bootstrapTimeout) {
-					try {
-
-						String notification = conn.getInfo("status/bootstrap-phase");
-						done |= notification.startsWith("NOTICE BOOTSTRAP PROGRESS=100 TAG=done");
-						if (done) break;
-						percent = parsePercent(notification);
-						publishProgress(new Update(UPDATE, "Bootstrap: " + percent));
-						final long start = System.currentTimeMillis();
-						Thread.sleep(1000);
-						waited += System.currentTimeMillis() - start;
-					} catch (InterruptedException e) {
-						// Waiting was interrupted. Do nothing.
-					}
-				}
-				if (!done) throw new TimeoutException("Tor did not bootstrap in the given timeout.");
-				final int socksPort = parsePort(conn.getInfo("net/listeners/socks").replace("\"", ""));
-
-				publishProgress(new Update(SUCCESS, "Bootstrapping done" + delimiter + controlPort + delimiter + socksPort));
-			} catch (Exception e) {
-				if (torProcess != null) torProcess.destroy();
-				new File(portFile).delete();
-				publishProgress(new Update(FAILURE, e.getMessage()));
-			}
-			return null;
-		}
-	}
-
-	private static class StopTask extends Task {
-
-		public StopTask(Context context, Listener listener) { super(context, listener); }
-
-		protected Void doInBackground(Void... params) {
-			final String directory = context.getFilesDir().getPath();
-
-			try {
-				final int port = getControlPort(directory);
-				shutdown(port);
-			    publishProgress(new Update(SUCCESS, "Signaled Tor to shutdown."));
-			} catch (Exception e) {
-				publishProgress(new Update(FAILURE, e.getMessage()));
-				if (torProcess != null) torProcess.destroy();
-			}
-			// Just to be sure: kill the process after 2 seconds
-			try { Thread.sleep(2000); } catch (InterruptedException e) {	}
-			torProcess.destroy();
-
-			return null;
-		}
-	}
-
-	private static Listener dummy = new Listener() {
-
-		@Override
-		public void success(String message) { }
-
-		@Override
-		public void update(String message) { }
-
-		@Override
-		public void failure(String message) { }
-	};
-
-	public static void start(Context context, Listener listener) { new StartTask(context, listener).execute(); }
-
-	public static void start(Context context) { new StartTask(context, dummy).execute(); }
-
-	public static void stop(Context context, Listener listener) { new StopTask(context, listener).execute(); }
-
-	public static void stop(Context context) { new StopTask(context, dummy).execute(); }
-
-	public static void shutdown(int controlPort) throws UnknownHostException, IOException {
-		Socket s = new Socket(Constants.localhost, controlPort);
-		TorControlConnection conn = new TorControlConnection(s);
-		conn.authenticate(new byte[0]);
-		conn.shutdownTor(Constants.shutdownsignal);
-	}
-
-	public static int getControlPort(String directory) {
-		final File portFile = new File(directory + workingSubdirectory + controlPortFile);
-		int port = -1;
-		BufferedReader buffer = null;
-
-		try {
-			InputStream file = new FileInputStream(portFile);
-		    InputStreamReader reader = new InputStreamReader(file);
-		    buffer = new BufferedReader(reader);
-		    final String line = buffer.readLine();
-		    port = parsePort(line);
-		} catch (Exception e) {
-
-		} finally {
-			// pretty Java code
-			try { if (buffer != null) buffer.close(); } catch (IOException e) { }
-		}
-
-	    return port;
-	}
-
-	public static String getWorkingDirectory(String directory) { return directory + workingSubdirectory; }
-
-	private static int parsePort(String line) { return Integer.valueOf(line.substring(line.lastIndexOf(":") + 1)); }
-
-	private static int parsePercent(String line) {
-		int start = line.indexOf("PROGRESS=") + "PROGRESS=".length();
-		int end = line.indexOf(" ", start);
-		return Integer.valueOf(line.substring(start, end));
-	}
-	
-	private static void copy(Context context, String location, int resource, boolean zip) throws IOException {
-		File destination = new File(location);
-		if (destination.exists()) return;
-
-		InputStream in = context.getResources().openRawResource(resource);
-		FileOutputStream out = new FileOutputStream(destination);
-		ZipInputStream zis = null;
-
-		if (zip) {
-			zis = new ZipInputStream(in);
-			zis.getNextEntry();
-			in = zis;
-		}
-		byte[] buffer = new byte[4096];
-		int bytecount;
-		while ((bytecount = in.read(buffer)) > 0)
-			out.write(buffer, 0, bytecount);
-
-		out.close();
-		in.close();
-		if (zip) zis.close();
-	}
-}
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import edu.kit.tm.ptp.utility.Constants;
+import edu.kit.tm.ptp.examples.android.receive.R;
+
+import net.freehaven.tor.control.NullEventHandler;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Android-specific manager for the Tor process. Might be included into main PeerTorPeer codebase in the future.
+ *
+ * How Tor is obtained is up to a {@link TorBackend}: by default a Tor process of our own, see {@link #setBackend}.
+ * 
+ * @author Simeon Andreev
+ *
+ */
+public class TorManager {
+
+	public static final long controlPortTimeout = 50 * 1000;
+	public static final long bootstrapTimeout = 90 * 1000;
+	public static final String delimiter = ":";
+	public static final String controlPortFile = "controlport";
+	public static final String pidFile = "tor.pid";
+	public static final String workingSubdirectory = "/ptphome/";
+	public static final long exitTimeout = 5 * 1000;
+	// Limit for the memory Tor spends on queued cells under memory pressure. Tor accepts nothing lower.
+	public static final String lowMaxMemInQueues = "256 MB";
+
+	private static final int SUCCESS = 0;
+	private static final int FAILURE = 1;
+	private static final int UPDATE = 2;
+
+	/** Lifecycle states of Tor. */
+	public static enum State {
+		STOPPED,
+		EXTRACTING,
+		BOOTSTRAPPING,
+		READY,
+		STOPPING
+	}
+	
+	private static Process torProcess = null;
+	private static volatile TorPorts ports = null;
+	private static final TorControlChannel control = new TorControlChannel(Constants.localhost);
+	private static final TorLog log = new TorLog(TorLog.defaultCapacity);
+	// Highest bootstrap percentage reported to the listeners of the current start
+	private static int reported = 0;
+
+	/**
+	 * How starting Tor waits for the control port file and the bootstrapping.
+	 */
+	public static enum BootstrapMode {
+		/** React to file system notifications and Tor's STATUS_CLIENT events. */
+		EVENTS,
+		/** Check once a second. Fallback for devices where the notifications misbehave. */
+		POLLING
+	}
+
+	private static volatile BootstrapMode bootstrapMode = BootstrapMode.EVENTS;
+
+	// Lifecycle, guarded by the class lock. Starts and stops run one after the other on the lifecycle thread.
+	private static final ExecutorService lifecycle = Executors.newSingleThreadExecutor();
+	private static final Handler main = new Handler(Looper.getMainLooper());
+	private static final List<Listener> startListeners = new ArrayList<Listener>();
+	private static final List<Listener> stopListeners = new ArrayList<Listener>();
+	private static State state = State.STOPPED;
+	// Whether Tor is requested to run
+	private static boolean wanted = false;
+	// Whether the lifecycle thread has work scheduled
+	private static boolean scheduled = false;
+	// The lifecycle thread while it works. Interrupted to cancel a start.
+	private static Thread worker = null;
+	private static Context context = null;
+	// The backend used by the next start, and the one of the current or last start
+	private static volatile TorBackend backend = new Embedded();
+	private static volatile TorBackend active = backend;
+	// Milliseconds the last successful start took
+	private static volatile long startupTime = -1;
+
+	public static interface Listener {
+
+		public void success(String message);
+
+		public void update(String message);
+
+		public void failure(String message);
+	}
+
+	/**
+	 * Applies start and stop requests one after the other on the lifecycle thread until the state matches the request.
+	 */
+	private static final Runnable reconcile = new Runnable() {
+
+		@Override
+		public void run() {
+			while (true) {
+				boolean start;
+				synchronized (TorManager.class) {
+					if (wanted && state != State.READY) start = true;
+					else if (!wanted && !stopListeners.isEmpty()) start = false;
+					else {
+						scheduled = false;
+						worker = null;
+						return;
+					}
+					worker = Thread.currentThread();
+				}
+				// Forget a cancellation which arrived after the last start was done.
+				Thread.interrupted();
+				if (start) runStart();
+				else runStop();
+			}
+		}
+	};
+
+	private static Listener dummy = new Listener() {
+
+		@Override
+		public void success(String message) { }
+
+		@Override
+		public void update(String message) { }
+
+		@Override
+		public void failure(String message) { }
+	};
+
+	public static void setBootstrapMode(BootstrapMode mode) { bootstrapMode = mode; }
+
+	public static BootstrapMode getBootstrapMode() { return bootstrapMode; }
+
+	/**
+	 * Sets the backend for the following starts. Tor started by the current one is stopped with it.
+	 */
+	public static void setBackend(TorBackend next) { backend = next != null ? next : new Embedded(); }
+
+	/**
+	 * Returns the backend of the current or last start.
+	 */
+	public static TorBackend getBackend() { return active; }
+
+	/**
+	 * Returns the milliseconds the last successful start took, or -1.
+	 */
+	public static long getStartupTime() { return startupTime; }
+
+	/**
+	 * Returns the ports of the Tor started by the last successful start, or null.
+	 */
+	public static TorPorts getPorts() { return ports; }
+
+	/**
+	 * Returns the last lines of output of the Tor started by this process.
+	 */
+	public static TorLog getLog() { return log; }
+
+	public static synchronized State getState() { return state; }
+
+	/**
+	 * Requests Tor to run. Requests made while Tor is starting are merged, all their listeners are notified once it runs.
+	 * A stop which has not begun yet is cancelled.
+	 */
+	public static void start(Context context, Listener listener) {
+		synchronized (TorManager.class) {
+			TorManager.context = context.getApplicationContext();
+			wanted = true;
+			if (state != State.STOPPING) notifyAll(stopListeners, FAILURE, "Stopping Tor was superseded by a start.");
+			if (state == State.READY) {
+				notify(listener, SUCCESS, "Tor already running" + delimiter + ports);
+				return;
+			}
+			startListeners.add(listener);
+			schedule();
+		}
+	}
+
+	public static void start(Context context) { start(context, dummy); }
+
+	/**
+	 * Requests Tor to stop. A start in progress is cancelled.
+	 */
+	public static void stop(Context context, Listener listener) {
+		synchronized (TorManager.class) {
+			TorManager.context = context.getApplicationContext();
+			wanted = false;
+			notifyAll(startListeners, FAILURE, "Starting Tor was cancelled.");
+			stopListeners.add(listener);
+			if ((state == State.EXTRACTING || state == State.BOOTSTRAPPING) && worker != null) worker.interrupt();
+			schedule();
+		}
+	}
+
+	public static void stop(Context context) { stop(context, dummy); }
+
+	private static void schedule() {
+		if (scheduled) return;
+		scheduled = true;
+		lifecycle.execute(reconcile);
+	}
+
+	/**
+	 * Starts Tor with the current backend. Runs on the lifecycle thread.
+	 */
+	private static void runStart() {
+		synchronized (TorManager.class) {
+			reported = 0;
+			active = backend;
+		}
+		final long started = SystemClock.uptimeMillis();
+		try {
+			ports = active.start(context);
+			startupTime = SystemClock.uptimeMillis() - started;
+			finishStart(true, "Tor ready (" + active.getName() + ")" + delimiter + ports);
+		} catch (Exception e) {
+			finishStart(false, e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops Tor with the backend which started it. Runs on the lifecycle thread.
+	 */
+	private static void runStop() {
+		setState(State.STOPPING);
+		ports = null;
+
+		boolean success = true;
+		String message;
+		try {
+			message = active.stop(context);
+		} catch (Exception e) {
+			success = false;
+			message = e.getMessage();
+		}
+
+		synchronized (TorManager.class) {
+			state = State.STOPPED;
+			notifyAll(stopListeners, success ? SUCCESS : FAILURE, message);
+		}
+	}
+
+	/**
+	 * Runs a Tor process of our own from the binary in the raw resources. Attaches to it again if it survived an
+	 * earlier instance of the service.
+	 */
+	private static class Embedded implements TorBackend {
+
+		@Override
+		public TorPorts start(Context context) throws Exception {
+			final String directory = context.getFilesDir().getPath();
+			final String workingDirectory = directory + workingSubdirectory;
+			final String torFile = workingDirectory + "tor";
+			final String torrcFile = workingDirectory + "torrc";
+			final String portFile = workingDirectory + controlPortFile;
+			final String torPidFile = workingDirectory + pidFile;
+			control.setSecret(null);
+
+			try {
+				// Check if Tor is already running, e.g. since the service was restarted. If so, do not start it again.
+				if (reattach(workingDirectory)) {
+					try {
+						// The service may have been killed while Tor was bootstrapping.
+						if (!TorStatus.isBootstrapDone(control.getInfo("status/bootstrap-phase"))) {
+							advance(State.BOOTSTRAPPING);
+							waitForBootstrap();
+						}
+						update("Tor already running.");
+						return new TorPorts(control.getPort(), getSocksPort());
+					} catch (IOException e) {
+						control.close();
+					}
+				}
+				advance(State.EXTRACTING);
+				new File(workingDirectory).mkdirs();
+				// Extract the files in the background while preparing the bootstrap.
+				AssetInstaller installer = new AssetInstaller(context, workingDirectory)
+					.add(torFile, R.raw.tor, true, true)
+					.add(torrcFile, R.raw.torrc, false, false);
+				installer.start();
+
+				// Tor is not reachable, so a leftover control port file is stale and must not end the wait below early.
+				new File(portFile).delete();
+				new File(torPidFile).delete();
+
+				/** The parameters for the Tor execution command. */
+				final String[] cmd = {
+					/** The Tor executable file to run. */
+					torFile,
+					/** Tell Tor which torrc file to use. */
+					Constants.torrcoption,
+					torrcFile,
+					/** Tell Tor to use a cache directory. */
+					Constants.datadiroption,//"DataDirectory",
+					workingDirectory.toString(),
+					/** Tell Tor to write its control port to a file. */
+					Constants.ctlportoutoption,//"ControlPortWriteToFile",
+					portFile,
+					/** Tell Tor to write its process ID to a file, to tell a stale control port file after a restart. */
+					"PidFile",
+					torPidFile
+				};
+				installer.await();
+				checkCancelled();
+				advance(State.BOOTSTRAPPING);
+				log.clear();
+				torProcess = Runtime.getRuntime().exec(cmd);
+				// Read Tor's output, so it never blocks on a full pipe. Its progress lines come before the control port's.
+				log.attach(torProcess, new TorLog.Listener() {
+
+					@Override
+					public void bootstrapped(int percent) { progress(percent); }
+				});
+				update("Bootstrapping started.");
+
+				// Wait until the control port file is written.
+				if (bootstrapMode == BootstrapMode.EVENTS) awaitControlPortFile(workingDirectory);
+				else pollControlPortFile(portFile);
+
+				final int controlPort = getControlPort(directory);
+				if (controlPort == -1) throw new TimeoutException("Could not read the control port output file.");
+
+				control.setPort(controlPort);
+
+				// Wait until the bootstrapping is done.
+				waitForBootstrap();
+				update("Bootstrapping done.");
+				return new TorPorts(controlPort, getSocksPort());
+			} catch (Exception e) {
+				control.close();
+				if (torProcess != null) {
+					torProcess.destroy();
+					torProcess = null;
+				}
+				new File(portFile).delete();
+				new File(torPidFile).delete();
+				throw e;
+			}
+		}
+
+		/**
+		 * Waits for our own Tor process to exit and kills it if it does not exit in time.
+		 */
+		@Override
+		public String stop(Context context) throws Exception {
+			final String directory = context.getFilesDir().getPath();
+			try {
+				final int port = getControlPort(directory);
+				if (port == -1 && torProcess == null) return "Tor is not running.";
+				shutdown(port);
+				return "Signaled Tor to shutdown.";
+			} catch (Exception e) {
+				control.close();
+				throw e;
+			} finally {
+				if (torProcess != null) {
+					if (!waitForExit(torProcess, exitTimeout)) torProcess.destroy();
+					torProcess = null;
+				}
+				new File(directory + workingSubdirectory + controlPortFile).delete();
+				new File(directory + workingSubdirectory + pidFile).delete();
+			}
+		}
+
+		/**
+		 * Reads the resident memory of the process in the PID file, which also covers a Tor we reattached to.
+		 */
+		@Override
+		public long getMemory() {
+			final Context current = context;
+			if (current == null) return -1;
+			final int pid = TorStatus.readPid(new File(current.getFilesDir().getPath() + workingSubdirectory + pidFile));
+			return pid != -1 ? TorStatus.readResidentMemory(pid) : -1;
+		}
+
+		@Override
+		public String getName() { return "embedded"; }
+	}
+
+	/**
+	 * Connects to a Tor left running by an earlier instance of the service. Returns false, after removing the stale
+	 * files, if there is none.
+	 *
+	 * A recorded process which no longer exists is detected without touching the network; otherwise the control port
+	 * gets a connection attempt with a short timeout.
+	 */
+	private static boolean reattach(String workingDirectory) {
+		final File portFile = new File(workingDirectory + controlPortFile);
+		final File torPidFile = new File(workingDirectory + pidFile);
+		final int controlPort = TorStatus.readControlPort(portFile);
+		if (controlPort != -1) {
+			final int pid = TorStatus.readPid(torPidFile);
+			if ((pid == -1 || TorStatus.isProcessAlive(pid)) && control.probe(controlPort)) return true;
+		}
+		portFile.delete();
+		torPidFile.delete();
+		return false;
+	}
+
+	private static void finishStart(boolean success, String message) {
+		synchronized (TorManager.class) {
+			state = success ? State.READY : State.STOPPED;
+			// Do not retry a failed start until it is requested again.
+			if (!success) wanted = false;
+			notifyAll(startListeners, success ? SUCCESS : FAILURE, message);
+		}
+	}
+
+	private static synchronized void setState(State next) { state = next; }
+
+	/**
+	 * Moves a start to its next state, unless a stop was requested before it could be interrupted. Called by the
+	 * backends.
+	 */
+	static synchronized void advance(State next) {
+		if (!wanted) throw new CancellationException("Starting Tor was cancelled.");
+		state = next;
+	}
+
+	/**
+	 * Throws if the start was cancelled by a stop request.
+	 */
+	private static void checkCancelled() {
+		if (Thread.interrupted()) throw new CancellationException("Starting Tor was cancelled.");
+	}
+
+	/**
+	 * Waits for a process to exit. Returns false if it did not exit within the timeout.
+	 */
+	private static boolean waitForExit(final Process process, long timeout) {
+		Thread waiter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try { process.waitFor(); } catch (InterruptedException e) { }
+			}
+		}, "Tor exit");
+		waiter.setDaemon(true);
+		waiter.start();
+		try {
+			waiter.join(timeout);
+		} catch (InterruptedException e) {
+		}
+		if (!waiter.isAlive()) return true;
+		waiter.interrupt();
+		return false;
+	}
+
+	/**
+	 * Passes a progress update to the listeners of the current start.
+	 */
+	private static synchronized void update(String message) {
+		for (Listener listener : startListeners) notify(listener, UPDATE, message);
+	}
+
+	/**
+	 * Passes bootstrap progress to the listeners of the current start. Progress comes from Tor's output and the
+	 * control port, each percentage is only passed on once.
+	 */
+	private static synchronized void progress(int percent) {
+		if (percent <= reported || percent >= 100) return;
+		reported = percent;
+		update("Bootstrap: " + percent);
+	}
+
+	private static void notifyAll(List<Listener> listeners, int result, String message) {
+		for (Listener listener : listeners) notify(listener, result, message);
+		listeners.clear();
+	}
+
+	/**
+	 * Passes a result to a listener on the main thread.
+	 */
+	private static void notify(final Listener listener, final int result, final String message) {
+		main.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if (result == SUCCESS) listener.success(message);
+				else if (result == UPDATE) listener.update(message);
+				else if (result == FAILURE) listener.failure(message);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the Tor at the control channel to bootstrap, in the current bootstrap mode.
+	 */
+	static void waitForBootstrap() throws IOException, TimeoutException {
+		if (bootstrapMode == BootstrapMode.EVENTS) awaitBootstrap();
+		else pollBootstrap();
+	}
+
+	/**
+	 * Waits for the control port file by checking for it once a second.
+	 */
+	private static void pollControlPortFile(String portFile) throws TimeoutException {
+		boolean controlPortFileExists = false;
+		long waited = 0;
+		while (waited < controlPortTimeout) {
+			try {
+				controlPortFileExists = new File(portFile).exists();
+				if (controlPortFileExists) break;
+				final long start = System.currentTimeMillis();
+				Thread.sleep(1000);
+				waited += System.currentTimeMillis() - start;
+			} catch (InterruptedException e) {
+				throw new CancellationException("Starting Tor was cancelled.");
+			}
+		}
+		if (!controlPortFileExists) throw new TimeoutException("Tor did not create the control port file in the given timeout.");
+	}
+
+	/**
+	 * Waits for the control port file using file system notifications on the working directory.
+	 */
+	private static void awaitControlPortFile(String workingDirectory) throws TimeoutException {
+		final CountDownLatch written = new CountDownLatch(1);
+		// Tor either writes the file directly or renames a temporary file to it.
+		FileObserver observer = new FileObserver(workingDirectory, FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+
+			@Override
+			public void onEvent(int event, String path) {
+				if (controlPortFile.equals(path)) written.countDown();
+			}
+		};
+		observer.startWatching();
+		try {
+			// The file might have been written before we started watching.
+			if (new File(workingDirectory + controlPortFile).exists()) return;
+			if (!written.await(controlPortTimeout, TimeUnit.MILLISECONDS))
+				throw new TimeoutException("Tor did not create the control port file in the given timeout.");
+		} catch (InterruptedException e) {
+			throw new CancellationException("Starting Tor was cancelled.");
+		} finally {
+			observer.stopWatching();
+		}
+	}
+
+	/**
+	 * Waits for Tor to bootstrap by querying the bootstrap phase once a second.
+	 */
+	private static void pollBootstrap() throws IOException, TimeoutException {
+		int percent = 0;
+		boolean done = false;
+		long waited = 0;
+		while (waited < bootstrapTimeout) {
+			try {
+
+				String notification = control.getInfo("status/bootstrap-phase");
+				done |= TorStatus.isBootstrapDone(notification);
+				if (done) break;
+				percent = parsePercent(notification);
+				progress(percent);
+				final long start = System.currentTimeMillis();
+				Thread.sleep(1000);
+				waited += System.currentTimeMillis() - start;
+			} catch (InterruptedException e) {
+				throw new CancellationException("Starting Tor was cancelled.");
+			}
+		}
+		if (!done) throw new TimeoutException("Tor did not bootstrap in the given timeout.");
+	}
+
+	/**
+	 * Waits for Tor to bootstrap by subscribing to the STATUS_CLIENT events of the control connection.
+	 */
+	private static void awaitBootstrap() throws IOException, TimeoutException {
+		final BlockingQueue<Integer> progress = new LinkedBlockingQueue<Integer>();
+		control.setEvents(new NullEventHandler() {
+
+			@Override
+			public void unrecognized(String type, String msg) {
+				if (type.equals("STATUS_CLIENT") && msg.contains(" BOOTSTRAP ")) progress.add(parsePercent(msg));
+			}
+		}, Arrays.asList("STATUS_CLIENT"));
+
+		try {
+			// Tor might have progressed before we subscribed.
+			progress.add(parsePercent(control.getInfo("status/bootstrap-phase")));
+
+			final long deadline = System.currentTimeMillis() + bootstrapTimeout;
+			int percent = 0;
+			while (percent < 100) {
+				final long remaining = deadline - System.currentTimeMillis();
+				Integer next = remaining > 0 ? progress.poll(remaining, TimeUnit.MILLISECONDS) : null;
+				if (next == null) throw new TimeoutException("Tor did not bootstrap in the given timeout.");
+				if (next <= percent) continue;
+				percent = next;
+				progress(percent);
+			}
+		} catch (InterruptedException e) {
+			throw new CancellationException("Starting Tor was cancelled.");
+		} finally {
+			control.setEvents(null, new ArrayList<String>());
+		}
+	}
+
+	public static void shutdown(int controlPort) throws IOException {
+		control.setPort(controlPort);
+		control.shutdownTor(Constants.shutdownsignal);
+	}
+
+	/**
+	 * Lowers the memory Tor spends on queued cells (MaxMemInQueues) while memory is low, or resets it to the torrc
+	 * value. Only applies to a Tor we run ourselves, an external Tor serves other apps as well. Returns whether the
+	 * limit was changed.
+	 */
+	public static boolean limitMemory(boolean limited) throws IOException {
+		if (!(active instanceof Embedded) || getState() != State.READY) return false;
+		if (limited) control.setConf("MaxMemInQueues", lowMaxMemInQueues);
+		else control.resetConf("MaxMemInQueues");
+		return true;
+	}
+
+	/**
+	 * Returns the channel to the control port of the Tor used by the current backend.
+	 */
+	public static TorControlChannel getControlChannel() { return control; }
+
+	/**
+	 * Returns the SOCKS port of the running Tor. Cached by the control channel after the first query.
+	 */
+	public static int getSocksPort() throws IOException { return parsePort(control.getInfo("net/listeners/socks")); }
+
+	public static int getControlPort(String directory) { return TorStatus.readControlPort(new File(directory + workingSubdirectory + controlPortFile)); }
+
+	public static String getWorkingDirectory(String directory) { return directory + workingSubdirectory; }
+
+	public static int parsePort(String line) { return TorStatus.parsePort(line); }
+
+	private static int parsePercent(String line) { return TorStatus.parsePercent(line); }
+}
@@ -0,0 +1,21 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+/**
+ * The ports of a running Tor.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class TorPorts {
+
+	public final int controlPort;
+	public final int socksPort;
+
+	public TorPorts(int controlPort, int socksPort) {
+		this.controlPort = controlPort;
+		this.socksPort = socksPort;
+	}
+
+	@Override
+	public String toString() { return controlPort + TorManager.delimiter + socksPort; }
+}
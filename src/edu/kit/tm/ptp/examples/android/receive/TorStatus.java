@@ -0,0 +1,134 @@
+package edu.kit.tm.ptp.examples.android.receive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Parsing of the status information Tor writes to files and reports over the control port.
+ *
+ * Plain Java without Android dependencies, so it can be exercised and measured on a desktop JVM.
+ *
+ * @author Simeon Andreev
+ *
+ */
+public class TorStatus {
+
+	private static final String progress = "PROGRESS=";
+	private static final String bootstrapped = "Bootstrapped ";
+
+	private TorStatus() { }
+
+	/**
+	 * Parses the port of an address like 127.0.0.1:9050. Surrounding quotes and further space separated addresses,
+	 * as in GETINFO net/listeners/socks replies, are ignored.
+	 */
+	public static int parsePort(String line) {
+		int end = line.indexOf(' ');
+		if (end == -1) end = line.length();
+		if (end > 0 && line.charAt(end - 1) == '"') --end;
+		return parseNumber(line, line.lastIndexOf(':', end - 1) + 1, end);
+	}
+
+	/**
+	 * Parses the percentage of a bootstrap status line like NOTICE BOOTSTRAP PROGRESS=50 TAG=... SUMMARY=...
+	 */
+	public static int parsePercent(String line) {
+		final int start = line.indexOf(progress) + progress.length();
+		int end = start;
+		while (end < line.length() && Character.isDigit(line.charAt(end))) ++end;
+		return parseNumber(line, start, end);
+	}
+
+	/**
+	 * Parses the percentage of a log line like Oct 18 10:00:00.000 [notice] Bootstrapped 45%: Asking for relay
+	 * descriptors. Returns -1 for other lines.
+	 */
+	public static int parseBootstrapped(String line) {
+		final int index = line.indexOf(bootstrapped);
+		if (index == -1) return -1;
+		final int start = index + bootstrapped.length();
+		int end = start;
+		while (end < line.length() && Character.isDigit(line.charAt(end))) ++end;
+		return end > start && end < line.length() && line.charAt(end) == '%' ? parseNumber(line, start, end) : -1;
+	}
+
+	/**
+	 * Returns whether a bootstrap status line reports that bootstrapping is done.
+	 */
+	public static boolean isBootstrapDone(String line) { return line.startsWith("NOTICE BOOTSTRAP PROGRESS=100 TAG=done"); }
+
+	/**
+	 * Reads the control port from the file written by Tor (ControlPortWriteToFile). Returns -1 if that fails.
+	 */
+	public static int readControlPort(File file) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			final String line = reader.readLine();
+			return line != null ? parsePort(line) : -1;
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			try { if (reader != null) reader.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Reads the process ID from the file written by Tor (PidFile). Returns -1 if that fails.
+	 */
+	public static int readPid(File file) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			final String line = reader.readLine();
+			return line != null ? parseNumber(line, 0, line.trim().length()) : -1;
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			try { if (reader != null) reader.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Returns whether a process with the given ID exists. Looks it up in /proc, which takes no system call beyond a stat.
+	 */
+	public static boolean isProcessAlive(int pid) { return new File("/proc/" + pid).exists(); }
+
+	/**
+	 * Returns the resident memory (VmRSS, in kB) of the process with the given ID, or -1 if it cannot be read.
+	 */
+	public static long readResidentMemory(int pid) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("VmRSS:")) continue;
+				final int end = line.indexOf(" kB");
+				final String value = line.substring("VmRSS:".length(), end != -1 ? end : line.length()).trim();
+				return parseNumber(value, 0, value.length());
+			}
+			return -1;
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			try { if (reader != null) reader.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Parses a non-negative decimal number from a part of a string without creating a substring.
+	 */
+	private static int parseNumber(String line, int start, int end) {
+		if (start >= end) throw new NumberFormatException("No number in: " + line);
+		int value = 0;
+		for (int i = start; i < end; ++i) {
+			final int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9) throw new NumberFormatException("Not a number in: " + line);
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+}